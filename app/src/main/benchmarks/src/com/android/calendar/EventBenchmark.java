@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+// adb shell am instrument -w -e class com.android.calendar.EventBenchmark
+//   com.android.calendar.benchmarks/androidx.benchmark.junit4.AndroidBenchmarkRunner
+
+@RunWith(Parameterized.class)
+public class EventBenchmark {
+    private static final int DAYS_PER_WEEK = 7;
+    private static final int DAY_WIDTH = 150;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final int mSize;
+    private final int mOverlap;
+    private SyntheticCalendar mCalendar;
+    private Context mContext;
+
+    @Parameters(name = "size={0},overlap={1}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {
+            {100, 1}, {100, 4}, {1000, 1}, {1000, 4}, {10000, 1}, {10000, 4}
+        });
+    }
+
+    public EventBenchmark(int size, int overlap) {
+        mSize = size;
+        mOverlap = overlap;
+    }
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mCalendar = new SyntheticCalendar(mSize, mOverlap);
+    }
+
+    @Test
+    public void computePositions() {
+        ArrayList<Event> events = mCalendar.toEvents();
+        long minimumDurationMillis = 15 * DateUtils.MINUTE_IN_MILLIS;
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Event.computePositions(events, minimumDurationMillis);
+        }
+    }
+
+    @Test
+    public void createDNAStrands() {
+        EventTable events = mCalendar.toEventTable();
+        int[] dayXs = new int[DAYS_PER_WEEK];
+        for (int day = 0; day < DAYS_PER_WEEK; day++) {
+            dayXs[day] = day * DAY_WIDTH + DAY_WIDTH / 2;
+        }
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Utils.createDNAStrands(mCalendar.firstJulianDay, events, 0, 400, 4, dayXs, mContext);
+        }
+    }
+}
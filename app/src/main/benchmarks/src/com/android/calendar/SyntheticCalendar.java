@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import android.database.MatrixCursor;
+import android.provider.CalendarContract.Attendees;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+
+import com.android.calendar.widget.CalendarAppWidgetService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A reproducible set of event instances for the benchmarks. Instances start
+ * on today's Julian day and fill as many days as needed so that, on average,
+ * {@code overlap} timed events are running at any time during a ten hour
+ * working day. One in ten instances is an all-day event.
+ */
+public class SyntheticCalendar {
+    private static final int WORK_DAY_START_MINUTE = 8 * 60;
+    private static final int WORK_DAY_MINUTES = 10 * 60;
+    private static final int MAX_EVENT_MINUTES = 120;
+    private static final int[] COLORS = {
+        0xff4986e7, 0xff16a765, 0xfff83a22, 0xffffad46, 0xff9a9cff, 0xffcd74e6
+    };
+
+    public final int size;
+    public final int firstJulianDay;
+    public final int numDays;
+
+    private final long[] mBegin;
+    private final long[] mEnd;
+    private final int[] mStartDay;
+    private final int[] mEndDay;
+    private final int[] mStartMinute;
+    private final int[] mEndMinute;
+    private final boolean[] mAllDay;
+    private final int[] mColor;
+    private final int[] mStatus;
+
+    public SyntheticCalendar(int size, int overlap) {
+        this.size = size;
+        Random random = new Random(size * 31 + overlap);
+        long now = System.currentTimeMillis();
+        firstJulianDay = Time.getJulianDay(now, 0);
+        // Timed events average MAX_EVENT_MINUTES / 2 minutes long.
+        int perDay = Math.max(1, overlap * WORK_DAY_MINUTES * 2 / MAX_EVENT_MINUTES);
+        numDays = (size + perDay - 1) / perDay;
+
+        mBegin = new long[size];
+        mEnd = new long[size];
+        mStartDay = new int[size];
+        mEndDay = new int[size];
+        mStartMinute = new int[size];
+        mEndMinute = new int[size];
+        mAllDay = new boolean[size];
+        mColor = new int[size];
+        mStatus = new int[size];
+        for (int i = 0; i < size; i++) {
+            int day = firstJulianDay + i * numDays / size;
+            long dayStart = (day - Time.EPOCH_JULIAN_DAY) * DateUtils.DAY_IN_MILLIS;
+            mStartDay[i] = day;
+            mColor[i] = COLORS[random.nextInt(COLORS.length)];
+            mStatus[i] = random.nextInt(8) == 0 ? Attendees.ATTENDEE_STATUS_DECLINED
+                    : Attendees.ATTENDEE_STATUS_ACCEPTED;
+            if (i % 10 == 9) {
+                int days = 1 + random.nextInt(3);
+                mAllDay[i] = true;
+                mEndDay[i] = day + days - 1;
+                mStartMinute[i] = 0;
+                mEndMinute[i] = DayView.MINUTES_PER_DAY;
+                mBegin[i] = dayStart;
+                mEnd[i] = dayStart + days * DateUtils.DAY_IN_MILLIS;
+            } else {
+                int start = WORK_DAY_START_MINUTE + random.nextInt(WORK_DAY_MINUTES);
+                int length = 15 + random.nextInt(MAX_EVENT_MINUTES - 15);
+                mEndDay[i] = day;
+                mStartMinute[i] = start;
+                mEndMinute[i] = start + length;
+                mBegin[i] = dayStart + start * DateUtils.MINUTE_IN_MILLIS;
+                mEnd[i] = mBegin[i] + length * DateUtils.MINUTE_IN_MILLIS;
+            }
+        }
+    }
+
+    private static String title(int i) {
+        return "Event " + (i % 50);
+    }
+
+    private static String location(int i) {
+        return i % 3 == 0 ? null : "Room " + (i % 20);
+    }
+
+    public ArrayList<Event> toEvents() {
+        ArrayList<Event> events = new ArrayList<Event>(size);
+        for (int i = 0; i < size; i++) {
+            Event e = Event.newInstance();
+            e.id = i;
+            e.title = title(i);
+            e.location = location(i);
+            e.color = mColor[i];
+            e.allDay = mAllDay[i];
+            e.startDay = mStartDay[i];
+            e.endDay = mEndDay[i];
+            e.startTime = mStartMinute[i];
+            e.endTime = mEndMinute[i];
+            e.startMillis = mBegin[i];
+            e.endMillis = mEnd[i];
+            e.selfAttendeeStatus = mStatus[i];
+            events.add(e);
+        }
+        return events;
+    }
+
+    public EventTable toEventTable() {
+        EventTable table = new EventTable(size);
+        for (int i = 0; i < size; i++) {
+            table.add(i, title(i), location(i), mAllDay[i], mColor[i], mBegin[i], mEnd[i],
+                    mStartDay[i], mEndDay[i], mStartMinute[i], mEndMinute[i], false, false,
+                    mStatus[i]);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the instances running on any day of [firstDay, lastDay], in the
+     * month query's order, as the month view's loader would load them.
+     */
+    public EventTable toEventTable(int firstDay, int lastDay) {
+        ArrayList<Integer> rows = new ArrayList<Integer>();
+        for (int i = 0; i < size; i++) {
+            if (mStartDay[i] <= lastDay && mEndDay[i] >= firstDay) {
+                rows.add(i);
+            }
+        }
+        rows.sort((a, b) -> {
+            if (mStartDay[a] != mStartDay[b]) {
+                return Integer.compare(mStartDay[a], mStartDay[b]);
+            }
+            if (mStartMinute[a] != mStartMinute[b]) {
+                return Integer.compare(mStartMinute[a], mStartMinute[b]);
+            }
+            return title(a).compareTo(title(b));
+        });
+        EventTable table = new EventTable(rows.size());
+        for (int i : rows) {
+            table.add(i, title(i), location(i), mAllDay[i], mColor[i], mBegin[i], mEnd[i],
+                    mStartDay[i], mEndDay[i], mStartMinute[i], mEndMinute[i], false, false,
+                    mStatus[i]);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the instances as the widget's instances query would, sorted by
+     * start time.
+     */
+    public MatrixCursor toWidgetCursor() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(mBegin[a], mBegin[b]));
+        MatrixCursor cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, size);
+        for (int i : order) {
+            Object[] row = new Object[CalendarAppWidgetService.EVENT_PROJECTION.length];
+            row[CalendarAppWidgetService.INDEX_ALL_DAY] = mAllDay[i] ? 1 : 0;
+            row[CalendarAppWidgetService.INDEX_BEGIN] = mBegin[i];
+            row[CalendarAppWidgetService.INDEX_END] = mEnd[i];
+            row[CalendarAppWidgetService.INDEX_TITLE] = title(i);
+            row[CalendarAppWidgetService.INDEX_EVENT_LOCATION] = location(i);
+            row[CalendarAppWidgetService.INDEX_EVENT_ID] = (long) i;
+            row[CalendarAppWidgetService.INDEX_START_DAY] = mStartDay[i];
+            row[CalendarAppWidgetService.INDEX_END_DAY] = mEndDay[i];
+            row[CalendarAppWidgetService.INDEX_COLOR] = mColor[i];
+            row[CalendarAppWidgetService.INDEX_SELF_ATTENDEE_STATUS] = mStatus[i];
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
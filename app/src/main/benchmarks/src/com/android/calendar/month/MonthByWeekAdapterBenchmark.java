@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.month;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.calendar.EventTable;
+import com.android.calendar.SyntheticCalendar;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+// adb shell am instrument -w -e class com.android.calendar.month.MonthByWeekAdapterBenchmark
+//   com.android.calendar.benchmarks/androidx.benchmark.junit4.AndroidBenchmarkRunner
+
+@RunWith(Parameterized.class)
+public class MonthByWeekAdapterBenchmark {
+    private static final int DAYS_PER_WEEK = 7;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final int mSize;
+    private final int mOverlap;
+    private SyntheticCalendar mCalendar;
+    private MonthByWeekAdapter mAdapter;
+
+    // Windows take turns with the day indexes, as MonthEventsLoader does
+    private final EventDayIndex[] mDayIndexes = { new EventDayIndex(), new EventDayIndex() };
+
+    @Parameters(name = "size={0},overlap={1}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {
+            {100, 1}, {100, 4}, {1000, 1}, {1000, 4}, {10000, 1}, {10000, 4}
+        });
+    }
+
+    public MonthByWeekAdapterBenchmark(int size, int overlap) {
+        mSize = size;
+        mOverlap = overlap;
+    }
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mCalendar = new SyntheticCalendar(mSize, mOverlap);
+        final HashMap<String, Integer> params = new HashMap<String, Integer>();
+        params.put(MonthByWeekAdapter.WEEK_PARAMS_IS_MINI, 0);
+        // The adapter sets up a GestureDetector, which needs a Looper.
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter = new MonthByWeekAdapter(context, params);
+            }
+        });
+    }
+
+    /**
+     * Builds the window for the whole calendar and shows it, as after a full
+     * load.
+     */
+    @Test
+    public void createWindow() {
+        int last = mCalendar.firstJulianDay + mCalendar.numDays - 1;
+        EventTable events = mCalendar.toEventTable(mCalendar.firstJulianDay, last);
+        BenchmarkState state = mBenchmarkRule.getState();
+        int turn = 0;
+        while (state.keepRunning()) {
+            mAdapter.setEvents(MonthEventWindow.create(mCalendar.firstJulianDay, last, events,
+                    mDayIndexes[turn++ & 1]));
+        }
+    }
+
+    /**
+     * Moves the window a week forward and shows it, as after scrolling.
+     */
+    @Test
+    public void spliceWindow() {
+        int first = mCalendar.firstJulianDay;
+        int last = first + Math.max(mCalendar.numDays, 2 * DAYS_PER_WEEK) - 1;
+        MonthEventWindow window = MonthEventWindow.create(first, last - DAYS_PER_WEEK,
+                mCalendar.toEventTable(first, last - DAYS_PER_WEEK));
+        EventTable loaded = mCalendar.toEventTable(last - DAYS_PER_WEEK + 1, last);
+        BenchmarkState state = mBenchmarkRule.getState();
+        int turn = 0;
+        while (state.keepRunning()) {
+            mAdapter.setEvents(window.splice(first + DAYS_PER_WEEK, last, loaded,
+                    mDayIndexes[turn++ & 1]));
+        }
+    }
+}
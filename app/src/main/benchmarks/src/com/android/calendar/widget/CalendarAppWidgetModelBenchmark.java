@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.widget;
+
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.text.format.Time;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.calendar.SyntheticCalendar;
+import com.android.calendar.widget.CalendarAppWidgetService.CalendarFactory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+// adb shell am instrument -w -e class com.android.calendar.widget.CalendarAppWidgetModelBenchmark
+//   com.android.calendar.benchmarks/androidx.benchmark.junit4.AndroidBenchmarkRunner
+
+@RunWith(Parameterized.class)
+public class CalendarAppWidgetModelBenchmark {
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final int mSize;
+    private final int mOverlap;
+    private MatrixCursor mCursor;
+    private Context mContext;
+
+    @Parameters(name = "size={0},overlap={1}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {
+            {100, 1}, {100, 4}, {1000, 1}, {1000, 4}, {10000, 1}, {10000, 4}
+        });
+    }
+
+    public CalendarAppWidgetModelBenchmark(int size, int overlap) {
+        mSize = size;
+        mOverlap = overlap;
+    }
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mCursor = new SyntheticCalendar(mSize, mOverlap).toWidgetCursor();
+    }
+
+    @Test
+    public void buildFromCursor() {
+        String timeZone = Time.getCurrentTimezone();
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            CalendarFactory.buildAppWidgetModel(mContext, mCursor, timeZone);
+        }
+    }
+}
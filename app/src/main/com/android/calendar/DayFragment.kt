@@ -197,6 +197,7 @@ class DayFragment : Fragment, CalendarController.EventHandler, ViewFactory {
         if (mViewSwitcher == null) {
             return
         }
+        mEventLoader?.invalidateCache()
         var view: DayView? = mViewSwitcher?.getCurrentView() as? DayView
         view?.clearCachedEvents()
         view?.reloadEvents()
@@ -31,16 +31,14 @@ import android.graphics.Rect
 import android.graphics.Typeface
 import android.graphics.drawable.Drawable
 import android.os.Handler
+import android.os.Looper
+import android.os.MessageQueue
 import android.provider.CalendarContract.Attendees
 import android.provider.CalendarContract.Calendars
-import android.text.Layout.Alignment
-import android.text.SpannableStringBuilder
 import android.text.StaticLayout
-import android.text.TextPaint
 import android.text.format.DateFormat
 import android.text.format.DateUtils
 import android.text.format.Time
-import android.text.style.StyleSpan
 import android.util.Log
 import android.view.ContextMenu
 import android.view.ContextMenu.ContextMenuInfo
@@ -72,8 +70,6 @@ import java.util.Arrays
 import java.util.Calendar
 import java.util.Formatter
 import java.util.Locale
-import java.util.regex.Matcher
-import java.util.regex.Pattern
 
 /**
  * View for multi-day view. So far only 1 and 7 day have been tested.
@@ -236,8 +232,41 @@ class DayView(
      * in the method clearCachedEvents()).
      */
     private var mLastReloadMillis: Long = 0
+    private var mPrefetchPending = false
     private var mEvents: ArrayList<Event> = ArrayList<Event>()
     private var mAllDayEvents: ArrayList<Event>? = ArrayList<Event>()
+
+    /**
+     * For each day starting at mDayEventsFirstJulianDay, the indices into
+     * mEvents of the timed events that are drawn on that day, in mEvents order.
+     */
+    private var mDayEvents: Array<IntArray> = arrayOf()
+    private var mDayEventsFirstJulianDay = 0
+
+    /**
+     * The rectangles of the events in mDayEvents, as left, top, right and
+     * bottom for each entry, measured from the top of the grid. They only
+     * change with the layout, so a day's rectangles are reused across frames
+     * until mLayoutGeneration moves past mDayEventRectsGeneration. Scrolling
+     * is applied on top of them as a translation.
+     */
+    private var mDayEventRects: Array<FloatArray?> = arrayOf()
+    private var mDayEventRectsGeneration: IntArray = IntArray(0)
+    private var mDayEventRectsFirstJulianDay = 0
+    private var mDayEventRectsCellHeight = 0
+    private var mLayoutGeneration = 0
+
+    /**
+     * Hit testing index for each day, built with the cached rectangles: the
+     * entries of mDayEvents sorted by the top of their rectangle, and the
+     * largest bottom seen so far in that order. Together they give the events
+     * under a point without looking at the rest of the day.
+     */
+    private var mDayEventOrder: Array<IntArray?> = arrayOf()
+    private var mDayEventMaxBottom: Array<FloatArray?> = arrayOf()
+    private var mHitEntries: IntArray = IntArray(8)
+    private var mLayoutPrebuildGeneration = 0
+    private var mLayoutPrebuildPending = false
     private var mLayouts: Array<StaticLayout?>? = null
     private var mAllDayLayouts: Array<StaticLayout?>? = null
     private var mSelectionDay = 0 // Julian day
@@ -944,6 +973,7 @@ class DayView(
             mExpandAlldayDrawable.getIntrinsicHeight())
         mNumHours = mGridAreaHeight / (mCellHeight + HOUR_GAP)
         mEventGeometry.setHourHeight(mCellHeight.toFloat())
+        mLayoutGeneration++
         val minimumDurationMillis =
             (MIN_EVENT_HEIGHT * DateUtils.MINUTE_IN_MILLIS / (mCellHeight / 60.0f)).toLong()
         Event.computePositions(mEvents, minimumDurationMillis)
@@ -1386,10 +1416,15 @@ class DayView(
         // load events in the background
         // mContext.startProgressSpinner();
         val events: ArrayList<Event> = ArrayList<Event>()
-        mEventLoader.loadEventsInBackground(mNumDays, events as ArrayList<Event?>, mFirstJulianDay,
-            object : Runnable {
+        val firstJulianDay = mFirstJulianDay
+        var fromCache = false
+        val applyEvents: Runnable = object : Runnable {
             override fun run() {
-                val fadeinEvents = mFirstJulianDay != mLoadedFirstJulianDay
+                // Ignore a load that finished after this view moved elsewhere.
+                if (firstJulianDay != mFirstJulianDay) {
+                    return
+                }
+                val fadeinEvents = mFirstJulianDay != mLoadedFirstJulianDay && !fromCache
                 mEvents = events
                 mLoadedFirstJulianDay = mFirstJulianDay
                 if (mAllDayEvents == null) {
@@ -1404,6 +1439,7 @@ class DayView(
                         mAllDayEvents?.add(e)
                     }
                 }
+                buildDayEventIndex(events, mFirstJulianDay)
 
                 // New events, new layouts
                 if (mLayouts == null || mLayouts!!.size < events.size) {
@@ -1420,6 +1456,7 @@ class DayView(
                 mRemeasure = true
                 mComputeSelectedEvents = true
                 recalc()
+                prebuildEventLayouts()
 
                 // Start animation to cross fade the events
                 if (fadeinEvents) {
@@ -1430,10 +1467,43 @@ class DayView(
                     }
                     mEventsCrossFadeAnimation?.start()
                 } else {
+                    if (fromCache) {
+                        stopEventsAnimation()
+                    }
                     invalidate()
                 }
+                schedulePrefetch()
+            }
+        }
+
+        // Events for a range next to one we have already shown are usually
+        // prefetched, in which case they can be shown right away.
+        if (mEventLoader.getCachedEvents(mNumDays, events as ArrayList<Event?>, mFirstJulianDay)) {
+            fromCache = true
+            applyEvents.run()
+        } else {
+            mEventLoader.loadEventsInBackground(mNumDays, events as ArrayList<Event?>,
+                mFirstJulianDay, applyEvents, mCancelCallback)
+        }
+    }
+
+    private fun schedulePrefetch() {
+        if (!mPrefetchPending) {
+            mPrefetchPending = true
+            Looper.myQueue().addIdleHandler(mPrefetchIdleHandler)
+        }
+    }
+
+    // Loads the ranges on either side of this one once the UI thread is idle,
+    // as long as this is still the visible view.
+    private val mPrefetchIdleHandler: MessageQueue.IdleHandler = object : MessageQueue.IdleHandler {
+        override fun queueIdle(): Boolean {
+            mPrefetchPending = false
+            if (isShown() && mLoadedFirstJulianDay == mFirstJulianDay) {
+                mEventLoader.prefetchEventsInBackground(mFirstJulianDay, mNumDays)
             }
-        }, mCancelCallback)
+            return false
+        }
     }
 
     var eventsAlpha: Int
@@ -1450,6 +1520,191 @@ class DayView(
         mEventsAlpha = 255
     }
 
+    /**
+     * Buckets the timed events by the days of this view that they are drawn
+     * on, so drawing and hit testing a day only looks at that day's events.
+     */
+    private fun buildDayEventIndex(events: ArrayList<Event>, firstJulianDay: Int) {
+        val numDays = mNumDays
+        val lastJulianDay = firstJulianDay + numDays - 1
+        val counts = IntArray(numDays)
+        for (event in events) {
+            if (event.drawAsAllday()) {
+                continue
+            }
+            val firstDay: Int = Math.max(event.startDay, firstJulianDay)
+            val lastDay: Int = Math.min(event.endDay, lastJulianDay)
+            for (day in firstDay..lastDay) {
+                counts[day - firstJulianDay]++
+            }
+        }
+        val dayEvents = Array<IntArray>(numDays) { day ->
+            if (counts[day] == 0) NO_EVENTS else IntArray(counts[day])
+        }
+        Arrays.fill(counts, 0)
+        for (i in 0 until events.size) {
+            val event: Event = events.get(i)
+            if (event.drawAsAllday()) {
+                continue
+            }
+            val firstDay: Int = Math.max(event.startDay, firstJulianDay)
+            val lastDay: Int = Math.min(event.endDay, lastJulianDay)
+            for (day in firstDay..lastDay) {
+                val index = day - firstJulianDay
+                dayEvents[index][counts[index]++] = i
+            }
+        }
+        mDayEvents = dayEvents
+        mDayEventsFirstJulianDay = firstJulianDay
+        mDayEventRects = arrayOfNulls<FloatArray>(numDays)
+        mDayEventRectsGeneration = IntArray(numDays)
+        mDayEventOrder = arrayOfNulls<IntArray>(numDays)
+        mDayEventMaxBottom = arrayOfNulls<FloatArray>(numDays)
+        mLayoutGeneration++
+    }
+
+    /**
+     * Returns the indices into mEvents of the timed events on the given
+     * Julian day.
+     */
+    private fun getDayEvents(date: Int): IntArray {
+        val index = date - mDayEventsFirstJulianDay
+        if (index < 0 || index >= mDayEvents.size) {
+            return NO_EVENTS
+        }
+        return mDayEvents[index]
+    }
+
+    /**
+     * Returns the cached rectangles of the timed events on the given Julian
+     * day, in the order of [getDayEvents], recomputing them if the layout
+     * has changed since they were last computed.
+     */
+    private fun getDayEventRects(date: Int): FloatArray {
+        val index = date - mDayEventsFirstJulianDay
+        if (index < 0 || index >= mDayEvents.size) {
+            return NO_EVENT_RECTS
+        }
+        if (mDayEventRectsFirstJulianDay != mFirstJulianDay ||
+            mDayEventRectsCellHeight != mCellHeight) {
+            // Horizontal positions depend on the first day shown and the
+            // vertical ones on the cell height, which all DayViews share.
+            mDayEventRectsFirstJulianDay = mFirstJulianDay
+            mDayEventRectsCellHeight = mCellHeight
+            mLayoutGeneration++
+        }
+        var rects: FloatArray? = mDayEventRects[index]
+        if (rects != null && mDayEventRectsGeneration[index] == mLayoutGeneration) {
+            return rects
+        }
+        val dayEvents: IntArray = mDayEvents[index]
+        if (rects == null || rects.size != dayEvents.size * 4) {
+            rects = FloatArray(dayEvents.size * 4)
+        }
+        val dayIndex = date - mFirstJulianDay
+        val left = computeDayLeftPosition(dayIndex) + 1
+        val cellWidth = computeDayLeftPosition(dayIndex + 1) - left + 1
+        val events: ArrayList<Event> = mEvents
+        for (j in dayEvents.indices) {
+            val event: Event = events.get(dayEvents[j])
+            mEventGeometry.computeEventRect(date, left, 0, cellWidth, event)
+            rects[j * 4] = event.left
+            rects[j * 4 + 1] = event.top
+            rects[j * 4 + 2] = event.right
+            rects[j * 4 + 3] = event.bottom
+        }
+        mDayEventRects[index] = rects
+        mDayEventRectsGeneration[index] = mLayoutGeneration
+        buildDayHitIndex(index, rects, dayEvents.size)
+        return rects
+    }
+
+    private fun buildDayHitIndex(index: Int, rects: FloatArray, count: Int) {
+        var order: IntArray? = mDayEventOrder[index]
+        var maxBottom: FloatArray? = mDayEventMaxBottom[index]
+        if (order == null || order.size != count) {
+            order = IntArray(count)
+            maxBottom = FloatArray(count)
+        }
+        // The events are loaded in start time order, so this insertion sort
+        // by top usually doesn't move anything.
+        for (j in 0 until count) {
+            val top = rects[j * 4 + 1]
+            var k = j
+            while (k > 0 && rects[order[k - 1] * 4 + 1] > top) {
+                order[k] = order[k - 1]
+                k--
+            }
+            order[k] = j
+        }
+        var bottom = Float.NEGATIVE_INFINITY
+        for (k in 0 until count) {
+            bottom = Math.max(bottom, rects[order[k] * 4 + 3])
+            maxBottom!![k] = bottom
+        }
+        mDayEventOrder[index] = order
+        mDayEventMaxBottom[index] = maxBottom
+    }
+
+    /**
+     * Adds the timed events on the given day whose rectangle, moved down by
+     * yOffset, intersects the region to mSelectedEvents, in mEvents order.
+     */
+    private fun addDayEventsInRegion(date: Int, region: Rect, yOffset: Int) {
+        val rects: FloatArray = getDayEventRects(date)
+        val index = date - mDayEventsFirstJulianDay
+        if (rects.size == 0) {
+            return
+        }
+        val order: IntArray = mDayEventOrder[index]!!
+        val maxBottom: FloatArray = mDayEventMaxBottom[index]!!
+        val regionTop = (region.top - yOffset).toFloat()
+        val regionBottom = (region.bottom - yOffset).toFloat()
+
+        // Find the first entry that starts at or below the region, then walk
+        // back while earlier entries can still reach down into it.
+        var lo = 0
+        var hi = order.size
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (rects[order[mid] * 4 + 1] < regionBottom) {
+                lo = mid + 1
+            } else {
+                hi = mid
+            }
+        }
+        var hits = 0
+        var k = lo - 1
+        while (k >= 0 && maxBottom[k] >= regionTop) {
+            val j = order[k]
+            if (rects[j * 4] < region.right && rects[j * 4 + 2] >= region.left &&
+                rects[j * 4 + 3] >= regionTop) {
+                if (hits == mHitEntries.size) {
+                    mHitEntries = Arrays.copyOf(mHitEntries, hits * 2)
+                }
+                mHitEntries[hits++] = j
+            }
+            k--
+        }
+        Arrays.sort(mHitEntries, 0, hits)
+        val dayEvents: IntArray = mDayEvents[index]
+        for (h in 0 until hits) {
+            val event: Event = mEvents.get(dayEvents[mHitEntries[h]])
+            applyEventRect(event, rects, mHitEntries[h], yOffset)
+            mSelectedEvents.add(event)
+        }
+    }
+
+    /**
+     * Copies a cached rectangle into the event, moved down by yOffset.
+     */
+    private fun applyEventRect(event: Event, rects: FloatArray, j: Int, yOffset: Int) {
+        event.left = rects[j * 4]
+        event.top = rects[j * 4 + 1] + yOffset
+        event.right = rects[j * 4 + 2]
+        event.bottom = rects[j * 4 + 3] + yOffset
+    }
+
     private fun computeEventRelations() {
         // Compute the layout relation between each event before measuring cell
         // width, as the cell width should be adjusted along with the relation.
@@ -2063,46 +2318,97 @@ class DayView(
         // the width hasn't changed (due to vertical resizing which causes
         // re-layout of events at min height)
         if (layout == null || r.width() !== layout.getWidth()) {
-            val bob = SpannableStringBuilder()
-            if (event.title != null) {
-                // MAX - 1 since we add a space
-                bob.append(drawTextSanitizer(event.title.toString(),
-                    MAX_EVENT_TEXT_LEN - 1))
-                bob.setSpan(StyleSpan(android.graphics.Typeface.BOLD), 0, bob.length, 0)
-                bob.append(' ')
-            }
-            if (event.location != null) {
-                bob.append(
-                    drawTextSanitizer(
-                        event.location.toString(),
-                        MAX_EVENT_TEXT_LEN - bob.length
-                    )
-                )
-            }
-            when (event.selfAttendeeStatus) {
-                Attendees.ATTENDEE_STATUS_INVITED -> paint.setColor(event.color)
-                Attendees.ATTENDEE_STATUS_DECLINED -> {
-                    paint.setColor(mEventTextColor)
-                    paint.setAlpha(Utils.DECLINED_EVENT_TEXT_ALPHA)
+            val textColor = getEventTextColor(event)
+            layout = mEventLayoutCache[event, r.width(), textColor]
+            if (layout == null) {
+                if (layouts === mLayouts && mLayoutPrebuildPending &&
+                    mEventsCrossFadeAnimation?.isRunning() == true) {
+                    // The text of newly loaded events is still being laid out
+                    // in the background and is faded out anyway, so leave it
+                    // for a later frame.
+                    return null
                 }
-                Attendees.ATTENDEE_STATUS_NONE, Attendees.ATTENDEE_STATUS_ACCEPTED,
-                    Attendees.ATTENDEE_STATUS_TENTATIVE -> paint.setColor(
-                    mEventTextColor
-                )
-                else -> paint.setColor(mEventTextColor)
+                layout = mEventLayoutCache.build(event, paint, r.width(), textColor)
             }
-
-            // Leave a one pixel boundary on the left and right of the rectangle for the event
-            layout = StaticLayout(
-                bob, 0, bob.length, TextPaint(paint), r.width(),
-                Alignment.ALIGN_NORMAL, 1.0f, 0.0f, true, null, r.width()
-            )
             layouts[i] = layout
         }
         layout.getPaint().setAlpha(mEventsAlpha)
         return layout
     }
 
+    private fun getEventTextColor(event: Event): Int {
+        return when (event.selfAttendeeStatus) {
+            Attendees.ATTENDEE_STATUS_INVITED -> event.color
+            Attendees.ATTENDEE_STATUS_DECLINED ->
+                mEventTextColor and 0x00ffffff or (Utils.DECLINED_EVENT_TEXT_ALPHA shl 24)
+            else -> mEventTextColor
+        }
+    }
+
+    /**
+     * Returns the width that drawEventRect and setupTextRect give the text of
+     * a timed event with the given horizontal edges.
+     */
+    private fun computeEventTextWidth(left: Float, right: Float): Int {
+        var width = right.toInt() - EVENT_RECT_RIGHT_MARGIN - (left.toInt() + EVENT_RECT_LEFT_MARGIN)
+        if (width > EVENT_TEXT_LEFT_MARGIN + EVENT_TEXT_RIGHT_MARGIN) {
+            width -= EVENT_TEXT_LEFT_MARGIN + EVENT_TEXT_RIGHT_MARGIN
+        }
+        return width
+    }
+
+    /**
+     * Lays out the text of the timed events on the days shown in the
+     * background, so the first frames after a load don't have to.
+     */
+    private fun prebuildEventLayouts() {
+        if (mViewWidth == 0 || mEvents.size == 0) {
+            return
+        }
+        if (mRemeasure) {
+            remeasure(getWidth(), getHeight())
+            mRemeasure = false
+        }
+        var count = 0
+        for (day in 0 until mNumDays) {
+            count += getDayEvents(mFirstJulianDay + day).size
+        }
+        val events = arrayOfNulls<Event>(count)
+        val widths = IntArray(count)
+        val textColors = IntArray(count)
+        count = 0
+        for (day in 0 until mNumDays) {
+            val date = mFirstJulianDay + day
+            val dayEvents: IntArray = getDayEvents(date)
+            val rects: FloatArray = getDayEventRects(date)
+            for (j in dayEvents.indices) {
+                val width = computeEventTextWidth(rects[j * 4], rects[j * 4 + 2])
+                if (width < MIN_CELL_WIDTH_FOR_TEXT) {
+                    continue
+                }
+                val event: Event = mEvents.get(dayEvents[j])
+                events[count] = event
+                widths[count] = width
+                textColors[count] = getEventTextColor(event)
+                count++
+            }
+        }
+        if (count == 0) {
+            return
+        }
+        val generation = ++mLayoutPrebuildGeneration
+        mLayoutPrebuildPending = true
+        mEventLayoutCache.prebuild(events, widths, textColors, count, mEventTextPaint,
+            object : Runnable {
+                override fun run() {
+                    if (generation == mLayoutPrebuildGeneration) {
+                        mLayoutPrebuildPending = false
+                        invalidate()
+                    }
+                }
+            })
+    }
+
     private fun drawAllDayEvents(firstDay: Int, numDays: Int, canvas: Canvas, p: Paint) {
         p.setTextSize(NORMAL_FONT_SIZE)
         p.setTextAlign(Paint.Align.LEFT)
@@ -2349,16 +2655,16 @@ class DayView(
         selectionArea.left = left
         selectionArea.right = selectionArea.left + cellWidth
         val events: ArrayList<Event> = mEvents
-        val numEvents: Int = events.size
+        val dayEvents: IntArray = getDayEvents(date)
+        val rects: FloatArray = getDayEventRects(date)
         val geometry: EventGeometry = mEventGeometry
         val viewEndY = mViewStartY + mViewHeight - DAY_HEADER_HEIGHT - mAlldayHeight
         val alpha: Int = eventTextPaint.getAlpha()
         eventTextPaint.setAlpha(mEventsAlpha)
-        for (i in 0 until numEvents) {
+        for (j in dayEvents.indices) {
+            val i = dayEvents[j]
             val event: Event = events.get(i)
-            if (!geometry.computeEventRect(date, left, top, cellWidth, event)) {
-                continue
-            }
+            applyEventRect(event, rects, j, top)
 
             // Don't draw it if it is not visible
             if (event.bottom < mViewStartY || event.top > viewEndY) {
@@ -2447,26 +2753,6 @@ class DayView(
         return r
     }
 
-    private val drawTextSanitizerFilter: Pattern = Pattern.compile("[\t\n],")
-
-    // Sanitize a string before passing it to drawText or else we get little
-    // squares. For newlines and tabs before a comma, delete the character.
-    // Otherwise, just replace them with a space.
-    private fun drawTextSanitizer(string: String, maxEventTextLen: Int): String {
-        var string = string
-        val m: Matcher = drawTextSanitizerFilter.matcher(string)
-        string = m.replaceAll(",")
-        var len: Int = string.length
-        if (maxEventTextLen <= 0) {
-            string = ""
-            len = 0
-        } else if (len > maxEventTextLen) {
-            string = string.substring(0, maxEventTextLen)
-            len = maxEventTextLen
-        }
-        return string.replace('\n', ' ')
-    }
-
     private fun drawEventText(
         eventLayout: StaticLayout?,
         rect: Rect,
@@ -3255,10 +3541,8 @@ class DayView(
     private fun findSelectedEvent(x: Int, y: Int) {
         var y = y
         val date = mSelectionDay
-        val cellWidth = mCellWidth
         var events: ArrayList<Event>? = mEvents
         var numEvents: Int = events!!.size
-        val left = computeDayLeftPosition(mSelectionDay - mFirstJulianDay)
         val top = 0
         setSelectedEvent(null)
         mSelectedEvents.clear()
@@ -3327,19 +3611,8 @@ class DayView(
         region.top = y - 10
         region.bottom = y + 10
         val geometry: EventGeometry = mEventGeometry
-        for (i in 0 until numEvents) {
-            val event: Event? = events.get(i)
-            // Compute the event rectangle.
-            if (!geometry.computeEventRect(date, left, top, cellWidth, event as Event)) {
-                continue
-            }
-
-            // If the event intersects the selection region, then add it to
-            // mSelectedEvents.
-            if (geometry.eventIntersectsSelection(event as Event, region)) {
-                mSelectedEvents.add(event as Event)
-            }
-        }
+        // Add the events that intersect the selection region to mSelectedEvents.
+        addDayEventsInRegion(date, region, top)
 
         // If there are any events in the selected region, then assign the
         // closest one to mSelectedEvent.
@@ -3687,6 +3960,8 @@ class DayView(
         private const val ACCESS_LEVEL_NONE = 0
         private const val ACCESS_LEVEL_DELETE = 1
         private const val ACCESS_LEVEL_EDIT = 2
+        private val NO_EVENTS = IntArray(0)
+        private val NO_EVENT_RECTS = FloatArray(0)
         private var mHorizontalSnapBackThreshold = 128
 
         // Update the current time line every five minutes if the window is left open that long
@@ -3770,7 +4045,7 @@ class DayView(
         private var AMPM_TEXT_SIZE = 9f
         private var MIN_HOURS_WIDTH = 96
         private var MIN_CELL_WIDTH_FOR_TEXT = 20
-        private const val MAX_EVENT_TEXT_LEN = 500
+        private const val EVENT_LAYOUT_CACHE_SIZE = 500
 
         // smallest height to draw an event with
         private var MIN_EVENT_HEIGHT = 24.0f // in pixels
@@ -3813,6 +4088,7 @@ class DayView(
         private var mCalendarHourLabelColor = 0
         private var mMoreAlldayEventsTextAlpha = MORE_EVENTS_MAX_ALPHA
         private var mCellHeight = 0 // shared among all DayViews
+        private val mEventLayoutCache = EventLayoutCache(EVENT_LAYOUT_CACHE_SIZE) // shared too
         private var mMinCellHeight = 32
         private var mScaledPagingTouchSlop = 0
 
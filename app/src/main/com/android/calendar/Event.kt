@@ -33,6 +33,8 @@ import android.util.Log
 
 import java.util.ArrayList
 import java.util.Arrays
+import java.util.Collections
+import java.util.Comparator
 import java.util.Iterator
 import java.util.concurrent.atomic.AtomicInteger
 
@@ -53,10 +55,7 @@ class Event : Cloneable {
          * therefore show up in the allday area).
          */
         private const val SORT_EVENTS_BY = "begin ASC, end DESC, title ASC"
-        private const val SORT_ALLDAY_BY = "startDay ASC, endDay DESC, title ASC"
         private const val DISPLAY_AS_ALLDAY = "dispAllday"
-        private const val EVENTS_WHERE = DISPLAY_AS_ALLDAY + "=0"
-        private const val ALLDAY_WHERE = DISPLAY_AS_ALLDAY + "=1"
 
         // The projection to use when querying instances to build a list of events
         @JvmField
@@ -141,7 +140,6 @@ class Event : Cloneable {
                 Debug.startMethodTracing("loadEvents")
             }
             var cEvents: Cursor? = null
-            var cAllday: Cursor? = null
             events.clear()
             try {
                 val endDay = startDay + days - 1
@@ -155,6 +153,8 @@ class Event : Cloneable {
                 // the left side.  If the start and end times of two events are
                 // the same then we sort alphabetically on the title.  This isn't
                 // required for correctness, it just adds a nice touch.
+                // The all-day events come back in the same query and are moved
+                // behind the timed events and sorted by day below.
 
                 // Respect the preference to show/hide declined events
                 val prefs: SharedPreferences? = GeneralPreferences.getSharedPreferences(context)
@@ -162,43 +162,77 @@ class Event : Cloneable {
                     GeneralPreferences.KEY_HIDE_DECLINED,
                     false
                 ) as Boolean
-                var where = EVENTS_WHERE
-                var whereAllday = ALLDAY_WHERE
+                var where = ""
                 if (hideDeclined) {
-                    val hideString = (" AND " + Instances.SELF_ATTENDEE_STATUS.toString() + "!=" +
+                    where = (Instances.SELF_ATTENDEE_STATUS.toString() + "!=" +
                         Attendees.ATTENDEE_STATUS_DECLINED)
-                    where += hideString
-                    whereAllday += hideString
                 }
                 cEvents = instancesQuery(
                     context?.getContentResolver(), EVENT_PROJECTION, startDay,
                     endDay, where, null, SORT_EVENTS_BY
                 )
-                cAllday = instancesQuery(
-                    context?.getContentResolver(), EVENT_PROJECTION, startDay,
-                    endDay, whereAllday, null, SORT_ALLDAY_BY
-                )
 
                 // Check if we should return early because there are more recent
                 // load requests waiting.
                 if (requestId != sequenceNumber?.get()) {
                     return
                 }
-                buildEventsFromCursor(events, cEvents, context, startDay, endDay)
-                buildEventsFromCursor(events, cAllday, context, startDay, endDay)
+                val loaded: ArrayList<Event?> = ArrayList<Event?>()
+                buildEventsFromCursor(loaded, cEvents, context, startDay, endDay)
+
+                // Split off the all-day events, keeping the timed events in the
+                // order of the query.
+                val allDayEvents: ArrayList<Event?> = ArrayList<Event?>()
+                for (e in loaded) {
+                    if (e!!.drawAsAllday()) {
+                        allDayEvents.add(e)
+                    } else {
+                        events.add(e)
+                    }
+                }
+                Collections.sort(allDayEvents, LOAD_ORDER_COMPARATOR)
+                events.addAll(allDayEvents)
             } finally {
                 if (cEvents != null) {
                     cEvents.close()
                 }
-                if (cAllday != null) {
-                    cAllday.close()
-                }
                 if (PROFILE) {
                     Debug.stopMethodTracing()
                 }
             }
         }
 
+        /**
+         * Sorts events into the order [loadEvents] returns them in: the timed
+         * events ordered like [SORT_EVENTS_BY], followed by the all-day events
+         * by start day, then later end day first, then title.
+         */
+        @JvmStatic fun sortEvents(events: ArrayList<Event?>) {
+            Collections.sort(events, LOAD_ORDER_COMPARATOR)
+        }
+
+        private val LOAD_ORDER_COMPARATOR: Comparator<Event?> = object : Comparator<Event?> {
+            override fun compare(e1: Event?, e2: Event?): Int {
+                val allDay1 = e1!!.drawAsAllday()
+                val allDay2 = e2!!.drawAsAllday()
+                if (allDay1 != allDay2) {
+                    return if (allDay1) 1 else -1
+                }
+                var result: Int
+                if (allDay1) {
+                    result = Integer.compare(e1.startDay, e2.startDay)
+                    if (result == 0) result = Integer.compare(e2.endDay, e1.endDay)
+                } else {
+                    result = java.lang.Long.compare(e1.startMillis, e2.startMillis)
+                    if (result == 0) result = java.lang.Long.compare(e2.endMillis, e1.endMillis)
+                }
+                if (result == 0) {
+                    result = e1.title.toString().compareTo(e2.title.toString())
+                }
+                return result
+            }
+        }
+
         /**
          * Performs a query to return all visible instances in the given range
          * that match the given selection. This is a blocking function and
@@ -292,6 +326,70 @@ class Event : Cloneable {
             }
         }
 
+        /**
+         * Adds all the instances from the cursor to an [EventTable], without
+         * creating an [Event] for each of them.
+         *
+         * @param events The table to append to
+         * @param cEvents Events to add to the table
+         * @param context
+         * @param startDay
+         * @param endDay
+         */
+        @JvmStatic fun buildEventsFromCursor(
+            events: EventTable?,
+            cEvents: Cursor?,
+            context: Context?,
+            startDay: Int,
+            endDay: Int
+        ) {
+            if (cEvents == null || events == null) {
+                Log.e(TAG, "buildEventsFromCursor: null cursor or null event table!")
+                return
+            }
+            val count: Int = cEvents.getCount()
+            if (count == 0) {
+                return
+            }
+            val res: Resources? = context?.getResources()
+            mNoTitleString = res?.getString(R.string.no_title_label)
+            mNoColorColor = res?.getColor(R.color.event_center) as Int
+            cEvents.moveToPosition(-1)
+            while (cEvents.moveToNext()) {
+                val eStartDay: Int = cEvents.getInt(PROJECTION_START_DAY_INDEX)
+                val eEndDay: Int = cEvents.getInt(PROJECTION_END_DAY_INDEX)
+                if (eStartDay > endDay || eEndDay < startDay) {
+                    continue
+                }
+                var title: String? = cEvents.getString(PROJECTION_TITLE_INDEX)
+                if (title == null || title.length == 0) {
+                    title = mNoTitleString
+                }
+                val color: Int = if (!cEvents.isNull(PROJECTION_COLOR_INDEX)) {
+                    Utils.getDisplayColorFromColor(cEvents.getInt(PROJECTION_COLOR_INDEX))
+                } else {
+                    mNoColorColor
+                }
+                events.add(
+                    cEvents.getLong(PROJECTION_EVENT_ID_INDEX),
+                    title,
+                    cEvents.getString(PROJECTION_LOCATION_INDEX),
+                    cEvents.getInt(PROJECTION_ALL_DAY_INDEX) != 0,
+                    color,
+                    cEvents.getLong(PROJECTION_BEGIN_INDEX),
+                    cEvents.getLong(PROJECTION_END_INDEX),
+                    eStartDay,
+                    eEndDay,
+                    cEvents.getInt(PROJECTION_START_MINUTE_INDEX),
+                    cEvents.getInt(PROJECTION_END_MINUTE_INDEX),
+                    cEvents.getInt(PROJECTION_HAS_ALARM_INDEX) != 0,
+                    !TextUtils.isEmpty(cEvents.getString(PROJECTION_RRULE_INDEX)) ||
+                        !TextUtils.isEmpty(cEvents.getString(PROJECTION_RDATE_INDEX)),
+                    cEvents.getInt(PROJECTION_SELF_ATTENDEE_STATUS_INDEX)
+                )
+            }
+        }
+
         /**
          * @param cEvents Cursor pointing at event
          * @return An event created from the cursor
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.calendar
+
+import android.graphics.Paint
+import android.os.Handler
+import android.os.Looper
+import android.os.Process
+import android.text.Layout.Alignment
+import android.text.SpannableStringBuilder
+import android.text.StaticLayout
+import android.text.TextPaint
+import android.text.style.StyleSpan
+import android.util.LruCache
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+
+/**
+ * Keeps the StaticLayouts used to draw event text in DayView. Layouts are
+ * keyed by the event id and everything that changes how its text is laid out,
+ * so they survive reloads of unchanged events. Layouts for newly loaded events
+ * can be built ahead of time on a background thread with [prebuild].
+ */
+class EventLayoutCache(maxLayouts: Int) {
+    private val mLayouts: LruCache<LayoutKey, StaticLayout> =
+        LruCache<LayoutKey, StaticLayout>(maxLayouts)
+    private val mHandler: Handler = Handler(Looper.getMainLooper())
+    private val mExecutor: Executor = Executors.newSingleThreadExecutor(object : ThreadFactory {
+        override fun newThread(r: Runnable): Thread {
+            return Thread(object : Runnable {
+                override fun run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+                    r.run()
+                }
+            }, "EventLayoutBuilder")
+        }
+    })
+
+    private class LayoutKey(event: Event, val width: Int, val textColor: Int) {
+        val id: Long = event.id
+        val title: String? = event.title?.toString()
+        val location: String? = event.location?.toString()
+        val status: Int = event.selfAttendeeStatus
+
+        override fun equals(other: Any?): Boolean {
+            if (other !is LayoutKey) {
+                return false
+            }
+            return id == other.id && width == other.width && textColor == other.textColor &&
+                status == other.status && title == other.title && location == other.location
+        }
+
+        override fun hashCode(): Int {
+            var result = (id xor (id ushr 32)).toInt()
+            result = 31 * result + width
+            result = 31 * result + textColor
+            result = 31 * result + status
+            result = 31 * result + (title?.hashCode() ?: 0)
+            result = 31 * result + (location?.hashCode() ?: 0)
+            return result
+        }
+    }
+
+    /**
+     * Returns the cached layout of the event's text at the given width and
+     * color, or null if there is none.
+     */
+    operator fun get(event: Event, width: Int, textColor: Int): StaticLayout? {
+        return mLayouts.get(LayoutKey(event, width, textColor))
+    }
+
+    /**
+     * Lays out the event's text on the calling thread and caches it.
+     */
+    fun build(event: Event, paint: Paint, width: Int, textColor: Int): StaticLayout {
+        val textPaint = TextPaint(paint)
+        textPaint.setColor(textColor)
+        val layout = buildLayout(event, textPaint, width)
+        mLayouts.put(LayoutKey(event, width, textColor), layout)
+        return layout
+    }
+
+    /**
+     * Lays out the text of count events on a background thread, skipping the
+     * ones that are already cached, and then runs onDone on the UI thread.
+     */
+    fun prebuild(
+        events: Array<Event?>,
+        widths: IntArray,
+        textColors: IntArray,
+        count: Int,
+        paint: Paint,
+        onDone: Runnable
+    ) {
+        // The UI thread keeps changing its paint, so take a copy for the
+        // background thread.
+        val basePaint = TextPaint(paint)
+        mExecutor.execute(object : Runnable {
+            override fun run() {
+                for (i in 0 until count) {
+                    val event: Event = events[i] ?: continue
+                    val key = LayoutKey(event, widths[i], textColors[i])
+                    if (mLayouts.get(key) == null) {
+                        val textPaint = TextPaint(basePaint)
+                        textPaint.setColor(textColors[i])
+                        mLayouts.put(key, buildLayout(event, textPaint, widths[i]))
+                    }
+                }
+                mHandler.post(onDone)
+            }
+        })
+    }
+
+    private fun buildLayout(event: Event, paint: TextPaint, width: Int): StaticLayout {
+        val bob = SpannableStringBuilder()
+        if (event.title != null) {
+            // MAX - 1 since we add a space
+            bob.append(drawTextSanitizer(event.title.toString(), MAX_EVENT_TEXT_LEN - 1))
+            bob.setSpan(StyleSpan(android.graphics.Typeface.BOLD), 0, bob.length, 0)
+            bob.append(' ')
+        }
+        if (event.location != null) {
+            bob.append(
+                drawTextSanitizer(
+                    event.location.toString(),
+                    MAX_EVENT_TEXT_LEN - bob.length
+                )
+            )
+        }
+
+        // Leave a one pixel boundary on the left and right of the rectangle for the event
+        return StaticLayout(
+            bob, 0, bob.length, paint, width,
+            Alignment.ALIGN_NORMAL, 1.0f, 0.0f, true, null, width
+        )
+    }
+
+    companion object {
+        private const val MAX_EVENT_TEXT_LEN = 500
+        private val drawTextSanitizerFilter: Pattern = Pattern.compile("[\t\n],")
+
+        // Sanitize a string before passing it to drawText or else we get little
+        // squares. For newlines and tabs before a comma, delete the character.
+        // Otherwise, just replace them with a space.
+        private fun drawTextSanitizer(string: String, maxEventTextLen: Int): String {
+            var string = string
+            val m: Matcher = drawTextSanitizerFilter.matcher(string)
+            string = m.replaceAll(",")
+            var len: Int = string.length
+            if (maxEventTextLen <= 0) {
+                string = ""
+                len = 0
+            } else if (len > maxEventTextLen) {
+                string = string.substring(0, maxEventTextLen)
+                len = maxEventTextLen
+            }
+            return string.replace('\n', ' ')
+        }
+    }
+}
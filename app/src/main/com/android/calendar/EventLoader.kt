@@ -22,30 +22,36 @@ import android.os.Handler
 import android.os.Process
 import android.provider.CalendarContract
 import android.provider.CalendarContract.EventDays
-import android.util.Log
+import android.text.TextUtils
 import java.util.ArrayList
 import java.util.Arrays
-import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
 
 class EventLoader(context: Context) {
     private val mContext: Context
     private val mHandler: Handler = Handler()
     private val mSequenceNumber: AtomicInteger? = AtomicInteger()
-    private val mLoaderQueue: LinkedBlockingQueue<LoadRequest>
-    private var mLoaderThread: LoaderThread? = null
     private val mResolver: ContentResolver
+    private val mEventCache: EventCache = EventCache()
+
+    // Each kind of request gets its own lane so that one can't discard or
+    // hold up another.
+    private val mEventsLane: LoaderLane =
+            LoaderLane("EventLoader", Process.THREAD_PRIORITY_BACKGROUND, this)
+    private val mEventDaysLane: LoaderLane =
+            LoaderLane("EventDaysLoader", Process.THREAD_PRIORITY_BACKGROUND, this)
+    private val mPrefetchLane: LoaderLane =
+            LoaderLane("EventPrefetcher", Process.THREAD_PRIORITY_LOWEST, this)
 
     private interface LoadRequest {
         fun processRequest(eventLoader: EventLoader?)
         fun skipRequest(eventLoader: EventLoader?)
     }
 
-    private class ShutdownRequest : LoadRequest {
-        override fun processRequest(eventLoader: EventLoader?) {}
-        override fun skipRequest(eventLoader: EventLoader?) {}
-    }
-
     /**
      *
      * Code for handling requests to get whether days have an event or not
@@ -123,14 +129,22 @@ class EventLoader(context: Context) {
         var cancelCallback: Runnable
         @Override
         override fun processRequest(eventLoader: EventLoader?) {
-            Event.loadEvents(eventLoader?.mContext, events, startDay,
-                    numDays, id, eventLoader?.mSequenceNumber)
+            if (eventLoader == null) {
+                return
+            }
+            // Don't bother querying if a newer request has already been made.
+            if (id != eventLoader.mSequenceNumber?.get()) {
+                eventLoader.mHandler.post(cancelCallback)
+                return
+            }
+            val loaded: Boolean = eventLoader.mEventCache.getEvents(eventLoader.mContext,
+                    events, startDay, numDays, id, eventLoader.mSequenceNumber)
 
             // Check if we are still the most recent request.
-            if (id == eventLoader?.mSequenceNumber?.get()) {
+            if (loaded && id == eventLoader.mSequenceNumber?.get()) {
                 eventLoader.mHandler.post(successCallback)
             } else {
-                eventLoader?.mHandler?.post(cancelCallback)
+                eventLoader.mHandler.post(cancelCallback)
             }
         }
 
@@ -146,53 +160,277 @@ class EventLoader(context: Context) {
         }
     }
 
-    private class LoaderThread(
-        queue: LinkedBlockingQueue<LoadRequest>,
-        eventLoader: EventLoader
-    ) : Thread() {
-        var mQueue: LinkedBlockingQueue<LoadRequest>
-        var mEventLoader: EventLoader
-        fun shutdown() {
-            try {
-                mQueue.put(ShutdownRequest())
-            } catch (ex: InterruptedException) {
-                // The put() method fails with InterruptedException if the
-                // queue is full. This should never happen because the queue
-                // has no limit.
-                Log.e("Cal", "LoaderThread.shutdown() interrupted!")
+    /**
+     * Speculatively loads the ranges before and after a visible range into the
+     * cache so that a swipe can show its events without waiting for a query.
+     */
+    private class PrefetchRequest(
+        var id: Int,
+        var startDay: Int,
+        var numDays: Int
+    ) : LoadRequest {
+        @Override
+        override fun processRequest(eventLoader: EventLoader?) {
+            if (eventLoader == null || id != eventLoader.mSequenceNumber?.get()) {
+                return
             }
+            val firstDay = startDay - numDays
+            val lastDay = startDay + 2 * numDays - 1
+            eventLoader.mEventCache.load(eventLoader.mContext, firstDay, lastDay,
+                    firstDay, lastDay, id, eventLoader.mSequenceNumber)
         }
 
         @Override
-        override fun run() {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
-            while (true) {
-                try {
-                    // Wait for the next request
-                    var request: LoadRequest = mQueue.take()
-
-                    // If there are a bunch of requests already waiting, then
-                    // skip all but the most recent request.
-                    while (!mQueue.isEmpty()) {
-                        // Let the request know that it was skipped
-                        request.skipRequest(mEventLoader)
-
-                        // Skip to the next request
-                        request = mQueue.take()
+        override fun skipRequest(eventLoader: EventLoader?) {
+        }
+    }
+
+    /**
+     * Keeps the events for a contiguous window of Julian days around the most
+     * recently requested range, so that moving the range only has to query the
+     * provider for the days that are not already loaded. The window is keyed on
+     * the home time zone and the hide-declined preference, both of which change
+     * the instances returned for a day.
+     */
+    private class EventCache {
+        private val mEvents: ArrayList<Event> = ArrayList<Event>()
+        private var mFirstDay = 0
+        private var mLastDay = -1
+        private var mTimeZone: String? = null
+        private var mHideDeclined = false
+        private var mGeneration = 0
+
+        /**
+         * Fills events with copies of the events overlapping the given range,
+         * loading whatever part of the range is not cached yet.
+         *
+         * @return false if a newer request arrived before the load finished
+         */
+        fun getEvents(
+            context: Context,
+            events: ArrayList<Event?>,
+            startDay: Int,
+            numDays: Int,
+            requestId: Int,
+            sequenceNumber: AtomicInteger?
+        ): Boolean {
+            val endDay = startDay + numDays - 1
+            if (!load(context, startDay, endDay, startDay - numDays, endDay + numDays,
+                    requestId, sequenceNumber)) {
+                return false
+            }
+            if (!getCachedEvents(context, events, startDay, numDays)) {
+                // The window moved while we were querying, load the range directly.
+                Event.loadEvents(context, events, startDay, numDays, requestId, sequenceNumber)
+            }
+            return requestId == sequenceNumber?.get()
+        }
+
+        /**
+         * Fills events with copies of the cached events overlapping the given
+         * range, without querying the provider.
+         *
+         * @return false if the range is not entirely cached
+         */
+        fun getCachedEvents(
+            context: Context,
+            events: ArrayList<Event?>,
+            startDay: Int,
+            numDays: Int
+        ): Boolean {
+            val endDay = startDay + numDays - 1
+            val timeZone: String? = Utils.getTimeZone(context, null)
+            val hideDeclined: Boolean = Utils.getHideDeclinedEvents(context)
+            synchronized(this) {
+                if (startDay < mFirstDay || endDay > mLastDay ||
+                        mHideDeclined != hideDeclined || !TextUtils.equals(mTimeZone, timeZone)) {
+                    return false
+                }
+                events.clear()
+                // Hand out copies since the views keep layout state in the events.
+                for (e in mEvents) {
+                    if (e.startDay <= endDay && e.endDay >= startDay) {
+                        val copy = Event()
+                        e.copyTo(copy)
+                        events.add(copy)
+                    }
+                }
+            }
+            Event.sortEvents(events)
+            return true
+        }
+
+        /**
+         * Extends the window to cover startDay through endDay, querying only
+         * the days that are missing, and then trims it to keepFirst through
+         * keepLast.
+         *
+         * @return false if a newer request arrived before the load finished
+         */
+        fun load(
+            context: Context,
+            startDay: Int,
+            endDay: Int,
+            keepFirst: Int,
+            keepLast: Int,
+            requestId: Int,
+            sequenceNumber: AtomicInteger?
+        ): Boolean {
+            val timeZone: String? = Utils.getTimeZone(context, null)
+            val hideDeclined: Boolean = Utils.getHideDeclinedEvents(context)
+            var generation = 0
+            var leftEnd = startDay - 1
+            var rightStart = endDay + 1
+            synchronized(this) {
+                if (mLastDay < mFirstDay || mHideDeclined != hideDeclined ||
+                        !TextUtils.equals(mTimeZone, timeZone) ||
+                        startDay > mLastDay + 1 || endDay < mFirstDay - 1) {
+                    // Nothing usable is cached, start a new window.
+                    clear()
+                    mTimeZone = timeZone
+                    mHideDeclined = hideDeclined
+                    mGeneration++
+                    leftEnd = endDay
+                } else {
+                    leftEnd = Math.min(endDay, mFirstDay - 1)
+                    rightStart = Math.max(startDay, mLastDay + 1)
+                }
+                generation = mGeneration
+            }
+
+            // Query the missing edges outside of the lock.
+            val left: ArrayList<Event?> = ArrayList<Event?>()
+            val right: ArrayList<Event?> = ArrayList<Event?>()
+            if (leftEnd >= startDay) {
+                Event.loadEvents(context, left, startDay, leftEnd - startDay + 1,
+                        requestId, sequenceNumber)
+                if (requestId != sequenceNumber?.get()) {
+                    return false
+                }
+            }
+            if (rightStart <= endDay) {
+                Event.loadEvents(context, right, rightStart, endDay - rightStart + 1,
+                        requestId, sequenceNumber)
+                if (requestId != sequenceNumber?.get()) {
+                    return false
+                }
+            }
+
+            synchronized(this) {
+                // The window must not have changed while we were querying,
+                // otherwise the loaded edges may no longer line up with it.
+                if (generation != mGeneration) {
+                    return true
+                }
+                if (mLastDay < mFirstDay) {
+                    for (e in left) {
+                        if (e != null) {
+                            mEvents.add(e)
+                        }
                     }
-                    if (request is ShutdownRequest) {
-                        return
+                    mFirstDay = startDay
+                    mLastDay = endDay
+                } else {
+                    // Events that also overlap the window are already cached.
+                    for (e in left) {
+                        if (e != null && e.endDay < mFirstDay) {
+                            mEvents.add(e)
+                        }
                     }
-                    request.processRequest(mEventLoader)
-                } catch (ex: InterruptedException) {
-                    Log.e("Cal", "background LoaderThread interrupted!")
+                    for (e in right) {
+                        if (e != null && e.startDay > mLastDay) {
+                            mEvents.add(e)
+                        }
+                    }
+                    mFirstDay = Math.min(mFirstDay, startDay)
+                    mLastDay = Math.max(mLastDay, endDay)
                 }
+                trim(keepFirst, keepLast)
+                mGeneration++
             }
+            return true
         }
 
-        init {
-            mQueue = queue
-            mEventLoader = eventLoader
+        /**
+         * Drops the cached events, e.g. after the provider reported a change.
+         */
+        @Synchronized fun invalidate() {
+            clear()
+            mGeneration++
+        }
+
+        private fun clear() {
+            mEvents.clear()
+            mFirstDay = 0
+            mLastDay = -1
+        }
+
+        private fun trim(firstDay: Int, lastDay: Int) {
+            if (mFirstDay >= firstDay && mLastDay <= lastDay) {
+                return
+            }
+            mFirstDay = Math.max(mFirstDay, firstDay)
+            mLastDay = Math.min(mLastDay, lastDay)
+            val iter = mEvents.iterator()
+            while (iter.hasNext()) {
+                val e = iter.next()
+                if (e.endDay < mFirstDay || e.startDay > mLastDay) {
+                    iter.remove()
+                }
+            }
+        }
+    }
+
+    /**
+     * A single background worker for one kind of request. Only the most recent
+     * request posted to a lane is kept; a newer one replaces it and the older
+     * request is told that it was skipped. Requests posted while the lane is
+     * stopped are run once it is started again.
+     */
+    private class LoaderLane(
+        private val mName: String,
+        private val mThreadPriority: Int,
+        private val mEventLoader: EventLoader
+    ) {
+        private val mPending: AtomicReference<LoadRequest?> = AtomicReference<LoadRequest?>()
+        private var mExecutor: ExecutorService? = null
+        private val mDrain: Runnable = object : Runnable {
+            override fun run() {
+                val request: LoadRequest? = mPending.getAndSet(null)
+                request?.processRequest(mEventLoader)
+            }
+        }
+
+        @Synchronized fun start() {
+            if (mExecutor != null) {
+                return
+            }
+            mExecutor = Executors.newSingleThreadExecutor(object : ThreadFactory {
+                override fun newThread(r: Runnable): Thread {
+                    return Thread(object : Runnable {
+                        override fun run() {
+                            Process.setThreadPriority(mThreadPriority)
+                            r.run()
+                        }
+                    }, mName)
+                }
+            })
+            if (mPending.get() != null) {
+                mExecutor?.execute(mDrain)
+            }
+        }
+
+        @Synchronized fun stop() {
+            mExecutor?.shutdown()
+            mExecutor = null
+        }
+
+        fun post(request: LoadRequest) {
+            val previous: LoadRequest? = mPending.getAndSet(request)
+            previous?.skipRequest(mEventLoader)
+            synchronized(this) {
+                mExecutor?.execute(mDrain)
+            }
         }
     }
 
@@ -200,25 +438,25 @@ class EventLoader(context: Context) {
      * Call this from the activity's onResume()
      */
     fun startBackgroundThread() {
-        mLoaderThread = LoaderThread(mLoaderQueue, this)
-        mLoaderThread?.start()
+        mEventsLane.start()
+        mEventDaysLane.start()
+        mPrefetchLane.start()
     }
 
     /**
      * Call this from the activity's onPause()
      */
     fun stopBackgroundThread() {
-        mLoaderThread!!.shutdown()
+        mEventsLane.stop()
+        mEventDaysLane.stop()
+        mPrefetchLane.stop()
     }
 
     /**
      * Loads "numDays" days worth of events, starting at start, into events.
      * Posts uiCallback to the [Handler] for this view, which will run in the UI thread.
-     * Reuses an existing background thread, if events were already being loaded in the background.
-     * NOTE: events and uiCallback are not used if an existing background thread gets reused --
-     * the ones that were passed in on the call that results in the background thread getting
-     * created are used, and the most recent call's worth of data is loaded into events and posted
-     * via the uiCallback.
+     * Only the most recent request is loaded; an older request that is still waiting, or
+     * that finishes after a newer one was made, posts its cancelCallback instead.
      */
     fun loadEventsInBackground(
         numDays: Int,
@@ -233,17 +471,47 @@ class EventLoader(context: Context) {
         // latest one.
         val id: Int = mSequenceNumber?.incrementAndGet() as Int
 
-        // Send the load request to the background thread
+        // Send the load request to the events lane
         val request = LoadEventsRequest(id, startDay, numDays,
                 events, successCallback, cancelCallback)
-        try {
-            mLoaderQueue.put(request)
-        } catch (ex: InterruptedException) {
-            // The put() method fails with InterruptedException if the
-            // queue is full. This should never happen because the queue
-            // has no limit.
-            Log.e("Cal", "loadEventsInBackground() interrupted!")
+        mEventsLane.post(request)
+    }
+
+    /**
+     * Fills events with the cached events for "numDays" days starting at
+     * startDay, if all of them are cached. This runs synchronously and
+     * supersedes any load still running in the background.
+     *
+     * @return true if events was filled from the cache
+     */
+    fun getCachedEvents(
+        numDays: Int,
+        events: ArrayList<Event?>,
+        startDay: Int
+    ): Boolean {
+        if (!mEventCache.getCachedEvents(mContext, events, startDay, numDays)) {
+            return false
         }
+        mSequenceNumber?.incrementAndGet()
+        return true
+    }
+
+    /**
+     * Loads the "numDays" days before and after the range starting at startDay
+     * into the cache at a low priority. The prefetch is dropped as soon as a
+     * new load is requested.
+     */
+    fun prefetchEventsInBackground(startDay: Int, numDays: Int) {
+        val request = PrefetchRequest(mSequenceNumber?.get() as Int, startDay, numDays)
+        mPrefetchLane.post(request)
+    }
+
+    /**
+     * Drops all cached events so the next load queries the provider again.
+     * Call this when the events in the provider have changed.
+     */
+    fun invalidateCache() {
+        mEventCache.invalidate()
     }
 
     /**
@@ -262,22 +530,14 @@ class EventLoader(context: Context) {
         eventDays: BooleanArray,
         uiCallback: Runnable
     ) {
-        // Send load request to the background thread
+        // Send load request to the event days lane
         val request = LoadEventDaysRequest(startDay, numDays,
                 eventDays, uiCallback)
-        try {
-            mLoaderQueue.put(request)
-        } catch (ex: InterruptedException) {
-            // The put() method fails with InterruptedException if the
-            // queue is full. This should never happen because the queue
-            // has no limit.
-            Log.e("Cal", "loadEventDaysInBackground() interrupted!")
-        }
+        mEventDaysLane.post(request)
     }
 
     init {
         mContext = context
-        mLoaderQueue = LinkedBlockingQueue<LoadRequest>()
         mResolver = context.getContentResolver()
     }
 }
\ No newline at end of file
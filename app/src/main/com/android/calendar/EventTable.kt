@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.calendar
+
+import android.text.format.DateUtils
+import java.util.ArrayList
+import java.util.Arrays
+import java.util.HashMap
+
+/**
+ * A column oriented list of event instances. Every instance is a row index
+ * into a set of parallel primitive arrays, so views that walk thousands of
+ * instances don't need an [Event] object for each of them. Titles and
+ * locations are interned and stored as indices into a shared string list.
+ *
+ * Rows are filled by [Event.buildEventsFromCursor] and are read-only after
+ * that; use [copyTo] when an [Event] is needed for a single row.
+ */
+class EventTable @JvmOverloads constructor(capacity: Int = 64) {
+    var size = 0
+        private set
+
+    @JvmField var id: LongArray
+    @JvmField var begin: LongArray
+    @JvmField var end: LongArray
+    @JvmField var startDay: IntArray
+    @JvmField var endDay: IntArray
+    @JvmField var startMinute: IntArray
+    @JvmField var endMinute: IntArray
+    @JvmField var color: IntArray
+    @JvmField var selfAttendeeStatus: IntArray
+    @JvmField var flags: IntArray
+    private var mTitles: IntArray
+    private var mLocations: IntArray
+    private val mStrings: ArrayList<String?> = ArrayList<String?>()
+    private val mStringIndices: HashMap<String, Int> = HashMap<String, Int>()
+
+    /**
+     * Removes all rows, keeping the allocated arrays for reuse.
+     */
+    fun clear() {
+        size = 0
+        mStrings.clear()
+        mStringIndices.clear()
+        mStrings.add(null)
+    }
+
+    /**
+     * Appends a row and returns its index.
+     */
+    fun add(
+        eventId: Long,
+        title: String?,
+        location: String?,
+        allDay: Boolean,
+        eventColor: Int,
+        beginMillis: Long,
+        endMillis: Long,
+        eventStartDay: Int,
+        eventEndDay: Int,
+        eventStartMinute: Int,
+        eventEndMinute: Int,
+        hasAlarm: Boolean,
+        isRepeating: Boolean,
+        attendeeStatus: Int
+    ): Int {
+        if (size == id.size) {
+            grow(size * 2)
+        }
+        val row = size++
+        id[row] = eventId
+        mTitles[row] = intern(title)
+        mLocations[row] = intern(location)
+        color[row] = eventColor
+        begin[row] = beginMillis
+        end[row] = endMillis
+        startDay[row] = eventStartDay
+        endDay[row] = eventEndDay
+        startMinute[row] = eventStartMinute
+        endMinute[row] = eventEndMinute
+        selfAttendeeStatus[row] = attendeeStatus
+        var rowFlags = 0
+        if (allDay) rowFlags = rowFlags or FLAG_ALL_DAY
+        if (hasAlarm) rowFlags = rowFlags or FLAG_HAS_ALARM
+        if (isRepeating) rowFlags = rowFlags or FLAG_REPEATING
+        // Same test as Event.drawAsAllday()
+        if (allDay || endMillis - beginMillis >= DateUtils.DAY_IN_MILLIS) {
+            rowFlags = rowFlags or FLAG_DRAW_AS_ALL_DAY
+        }
+        flags[row] = rowFlags
+        return row
+    }
+
+    /**
+     * Appends a copy of a row of another table and returns its index.
+     */
+    fun addRow(src: EventTable, row: Int): Int {
+        val srcFlags = src.flags[row]
+        return add(src.id[row], src.getTitle(row), src.getLocation(row),
+            srcFlags and FLAG_ALL_DAY != 0, src.color[row], src.begin[row], src.end[row],
+            src.startDay[row], src.endDay[row], src.startMinute[row], src.endMinute[row],
+            srcFlags and FLAG_HAS_ALARM != 0, srcFlags and FLAG_REPEATING != 0,
+            src.selfAttendeeStatus[row])
+    }
+
+    fun getTitle(row: Int): String? {
+        return mStrings.get(mTitles[row])
+    }
+
+    fun getLocation(row: Int): String? {
+        return mStrings.get(mLocations[row])
+    }
+
+    fun isAllDay(row: Int): Boolean {
+        return flags[row] and FLAG_ALL_DAY != 0
+    }
+
+    fun drawAsAllday(row: Int): Boolean {
+        return flags[row] and FLAG_DRAW_AS_ALL_DAY != 0
+    }
+
+    /**
+     * Returns the title and location of a row the same way as
+     * [Event.titleAndLocation].
+     */
+    fun getTitleAndLocation(row: Int): String {
+        var text = getTitle(row).toString()
+        val location = getLocation(row)
+        if (location != null && !text.endsWith(location)) {
+            text += ", $location"
+        }
+        return text
+    }
+
+    /**
+     * Copies a row into an existing [Event], so a single scratch event can be
+     * reused while walking the table.
+     */
+    fun copyTo(row: Int, dest: Event) {
+        dest.id = id[row]
+        dest.title = getTitle(row)
+        dest.location = getLocation(row)
+        dest.color = color[row]
+        dest.allDay = flags[row] and FLAG_ALL_DAY != 0
+        dest.startDay = startDay[row]
+        dest.endDay = endDay[row]
+        dest.startTime = startMinute[row]
+        dest.endTime = endMinute[row]
+        dest.startMillis = begin[row]
+        dest.endMillis = end[row]
+        dest.hasAlarm = flags[row] and FLAG_HAS_ALARM != 0
+        dest.isRepeating = flags[row] and FLAG_REPEATING != 0
+        dest.selfAttendeeStatus = selfAttendeeStatus[row]
+    }
+
+    private fun intern(value: String?): Int {
+        if (value == null) {
+            return 0
+        }
+        var index: Int? = mStringIndices.get(value)
+        if (index == null) {
+            index = mStrings.size
+            mStrings.add(value)
+            mStringIndices.put(value, index)
+        }
+        return index
+    }
+
+    private fun grow(capacity: Int) {
+        id = Arrays.copyOf(id, capacity)
+        begin = Arrays.copyOf(begin, capacity)
+        end = Arrays.copyOf(end, capacity)
+        startDay = Arrays.copyOf(startDay, capacity)
+        endDay = Arrays.copyOf(endDay, capacity)
+        startMinute = Arrays.copyOf(startMinute, capacity)
+        endMinute = Arrays.copyOf(endMinute, capacity)
+        color = Arrays.copyOf(color, capacity)
+        selfAttendeeStatus = Arrays.copyOf(selfAttendeeStatus, capacity)
+        flags = Arrays.copyOf(flags, capacity)
+        mTitles = Arrays.copyOf(mTitles, capacity)
+        mLocations = Arrays.copyOf(mLocations, capacity)
+    }
+
+    companion object {
+        const val FLAG_ALL_DAY = 1
+        const val FLAG_DRAW_AS_ALL_DAY = 1 shl 1
+        const val FLAG_HAS_ALARM = 1 shl 2
+        const val FLAG_REPEATING = 1 shl 3
+    }
+
+    init {
+        val initialCapacity = Math.max(capacity, 1)
+        id = LongArray(initialCapacity)
+        begin = LongArray(initialCapacity)
+        end = LongArray(initialCapacity)
+        startDay = IntArray(initialCapacity)
+        endDay = IntArray(initialCapacity)
+        startMinute = IntArray(initialCapacity)
+        endMinute = IntArray(initialCapacity)
+        color = IntArray(initialCapacity)
+        selfAttendeeStatus = IntArray(initialCapacity)
+        flags = IntArray(initialCapacity)
+        mTitles = IntArray(initialCapacity)
+        mLocations = IntArray(initialCapacity)
+        mStrings.add(null)
+    }
+}
@@ -39,15 +39,14 @@ import android.text.format.DateFormat
 import android.text.format.DateUtils
 import android.text.format.Time
 import android.util.Log
+import android.util.SparseArray
 import com.android.calendar.CalendarController.ViewType
 import com.android.calendar.CalendarUtils.TimeZoneUtils
 import java.util.ArrayList
 import java.util.Arrays
 import java.util.Calendar
 import java.util.Formatter
-import java.util.HashMap
 import java.util.LinkedHashSet
-import java.util.LinkedList
 import java.util.List
 import java.util.Locale
 import java.util.TimeZone
@@ -780,7 +779,7 @@ object Utils {
      * range of days from firstJulianDay to firstJulianDay + dayXs.length - 1.
      * The algorithm goes over all the events and creates a set of segments
      * ordered by start time. This list of segments is then converted into a
-     * HashMap of strands which contain the draw points and are organized by
+     * map of strands which contain the draw points and are organized by
      * color. The strands can then be drawn by setting the paint color to each
      * strand's color and calling drawLines on its set of points. The points are
      * set up using the following parameters.
@@ -796,22 +795,45 @@ object Utils {
      *
      *
      * @param firstJulianDay The julian day of the first day of events
-     * @param events A list of events sorted by start time
+     * @param events A table of events sorted by start time
      * @param top The lowest y value the dna should be drawn at
      * @param bottom The highest y value the dna should be drawn at
      * @param dayXs An array of x values to draw the dna at, one for each day
-     * @param conflictColor the color to use for conflicts
-     * @return
+     * @param recycled strands from a previous call whose point arrays may be
+     * reused, which must not be drawn afterwards
+     * @return the strands keyed by color, each with position points to draw
+     */
+    @JvmStatic @JvmOverloads fun createDNAStrands(
+        firstJulianDay: Int,
+        events: EventTable?,
+        top: Int,
+        bottom: Int,
+        minPixels: Int,
+        dayXs: IntArray?,
+        context: Context?,
+        recycled: SparseArray<DNAStrand>? = null
+    ): SparseArray<DNAStrand>? {
+        return createDNAStrands(firstJulianDay, events, null, events?.size ?: 0, top, bottom,
+            minPixels, dayXs, context, recycled)
+    }
+
+    /**
+     * Like [createDNAStrands], but only for the first rowCount rows listed in
+     * rows, which must be in start time order. If rows is null the first
+     * rowCount rows of the table are used.
      */
     @JvmStatic fun createDNAStrands(
         firstJulianDay: Int,
-        events: ArrayList<Event?>?,
+        events: EventTable?,
+        rows: IntArray?,
+        rowCount: Int,
         top: Int,
         bottom: Int,
         minPixels: Int,
         dayXs: IntArray?,
-        context: Context?
-    ): HashMap<Int, DNAStrand>? {
+        context: Context?,
+        recycled: SparseArray<DNAStrand>?
+    ): SparseArray<DNAStrand>? {
         if (!mMinutesLoaded) {
             if (context == null) {
                 Log.wtf(TAG, "No context and haven't loaded parameters yet! Can't create DNA.")
@@ -824,7 +846,7 @@ object Utils {
             WORK_DAY_MINUTES = WORK_DAY_END_MINUTES - WORK_DAY_START_MINUTES
             mMinutesLoaded = true
         }
-        if (events == null || events.isEmpty() || dayXs == null || dayXs.size < 1 ||
+        if (events == null || rowCount == 0 || dayXs == null || dayXs.size < 1 ||
             bottom - top < 8 || minPixels < 0) {
             Log.e(
                 TAG,
@@ -834,13 +856,11 @@ object Utils {
             )
             return null
         }
-        val segments: LinkedList<DNASegment> = LinkedList<DNASegment>()
-        val strands: HashMap<Int, DNAStrand> = HashMap<Int, DNAStrand>()
+        val segments = DNASegments()
+        val strands: SparseArray<DNAStrand> = SparseArray<DNAStrand>()
         // add a black strand by default, other colors will get added in
         // the loop
-        val blackStrand = DNAStrand()
-        blackStrand.color = CONFLICT_COLOR
-        strands.put(CONFLICT_COLOR, blackStrand)
+        getOrCreateStrand(strands, CONFLICT_COLOR)
         // the min length is the number of minutes that will occupy
         // MIN_SEGMENT_PIXELS in the 'work day' time slot. This computes the
         // minutes/pixel * minpx where the number of pixels are 3/4 the total
@@ -851,78 +871,78 @@ object Utils {
         // so round to 2.5x for the min minutes in the non-work area
         val minOtherMinutes = minMinutes * 5 / 2
         val lastJulianDay = firstJulianDay + dayXs.size - 1
-        val event = Event()
         // Go through all the events for the week
-        for (currEvent in events) {
+        for (r in 0 until rowCount) {
+            val row: Int = if (rows != null) rows[r] else r
             // if this event is outside the weeks range skip it
-            if (currEvent != null &&
-                (currEvent.endDay < firstJulianDay || currEvent.startDay > lastJulianDay)) {
+            if (events.endDay[row] < firstJulianDay || events.startDay[row] > lastJulianDay) {
                 continue
             }
-            if (currEvent?.drawAsAllday() == true) {
-                addAllDayToStrands(currEvent, strands, firstJulianDay, dayXs.size)
+            if (events.drawAsAllday(row)) {
+                addAllDayToStrands(events, row, strands, firstJulianDay, dayXs.size)
                 continue
             }
-            // Copy the event over so we can clip its start and end to our range
-            currEvent?.copyTo(event)
-            if (event.startDay < firstJulianDay) {
-                event.startDay = firstJulianDay
-                event.startTime = 0
+            // Copy the times so we can clip the start and end to our range
+            val color: Int = events.color[row]
+            var startDay: Int = events.startDay[row]
+            var startTime: Int = events.startMinute[row]
+            var endDay: Int = events.endDay[row]
+            var endTime: Int = events.endMinute[row]
+            if (startDay < firstJulianDay) {
+                startDay = firstJulianDay
+                startTime = 0
             }
             // If it starts after the work day make sure the start is at least
             // minPixels from midnight
-            if (event.startTime > DAY_IN_MINUTES - minOtherMinutes) {
-                event.startTime = DAY_IN_MINUTES - minOtherMinutes
+            if (startTime > DAY_IN_MINUTES - minOtherMinutes) {
+                startTime = DAY_IN_MINUTES - minOtherMinutes
             }
-            if (event.endDay > lastJulianDay) {
-                event.endDay = lastJulianDay
-                event.endTime = DAY_IN_MINUTES - 1
+            if (endDay > lastJulianDay) {
+                endDay = lastJulianDay
+                endTime = DAY_IN_MINUTES - 1
             }
             // If the end time is before the work day make sure it ends at least
             // minPixels after midnight
-            if (event.endTime < minOtherMinutes) {
-                event.endTime = minOtherMinutes
+            if (endTime < minOtherMinutes) {
+                endTime = minOtherMinutes
             }
             // If the start and end are on the same day make sure they are at
             // least minPixels apart. This only needs to be done for times
             // outside the work day as the min distance for within the work day
             // is enforced in the segment code.
-            if (event.startDay === event.endDay &&
-                event.endTime - event.startTime < minOtherMinutes
-            ) {
+            if (startDay == endDay && endTime - startTime < minOtherMinutes) {
                 // If it's less than minPixels in an area before the work
                 // day
-                if (event.startTime < WORK_DAY_START_MINUTES) {
+                if (startTime < WORK_DAY_START_MINUTES) {
                     // extend the end to the first easy guarantee that it's
                     // minPixels
-                    event.endTime = Math.min(
-                        event.startTime + minOtherMinutes,
-                        WORK_DAY_START_MINUTES + minMinutes
-                    )
+                    endTime = Math.min(startTime + minOtherMinutes,
+                        WORK_DAY_START_MINUTES + minMinutes)
                     // if it's in the area after the work day
-                } else if (event.endTime > WORK_DAY_END_MINUTES) {
+                } else if (endTime > WORK_DAY_END_MINUTES) {
                     // First try shifting the end but not past midnight
-                    event.endTime = Math.min(event.endTime + minOtherMinutes, DAY_IN_MINUTES - 1)
+                    endTime = Math.min(endTime + minOtherMinutes, DAY_IN_MINUTES - 1)
                     // if it's still too small move the start back
-                    if (event.endTime - event.startTime < minOtherMinutes) {
-                        event.startTime = event.endTime - minOtherMinutes
+                    if (endTime - startTime < minOtherMinutes) {
+                        startTime = endTime - minOtherMinutes
                     }
                 }
             }
 
             // This handles adding the first segment
             if (segments.size == 0) {
-                addNewSegment(segments, event, strands, firstJulianDay, 0, minMinutes)
+                addNewSegment(segments, strands, color, startDay, startTime, endDay, endTime,
+                    firstJulianDay, 0, minMinutes)
                 continue
             }
             // Now compare our current start time to the end time of the last
-            // segment in the list
-            val lastSegment: DNASegment = segments.getLast()
-            var startMinute: Int =
-                (event.startDay - firstJulianDay) * DAY_IN_MINUTES + event.startTime
+            // segment in the list, following it while segments around it are
+            // added and removed.
+            segments.track(segments.size - 1)
+            var startMinute: Int = (startDay - firstJulianDay) * DAY_IN_MINUTES + startTime
             var endMinute: Int = Math.max(
-                (event.endDay - firstJulianDay) * DAY_IN_MINUTES +
-                    event.endTime, startMinute + minMinutes
+                (endDay - firstJulianDay) * DAY_IN_MINUTES + endTime,
+                startMinute + minMinutes
             )
             if (startMinute < 0) {
                 startMinute = 0
@@ -933,140 +953,116 @@ object Utils {
             // If we start before the last segment in the list ends we need to
             // start going through the list as this may conflict with other
             // events
-            if (startMinute < lastSegment.endMinute) {
+            if (startMinute < segments.trackedEndMinute()) {
                 var i: Int = segments.size
                 // find the last segment this event intersects with
-                while (--i >= 0 && endMinute < segments.get(i).startMinute) {}
-
-                var currSegment: DNASegment = DNASegment()
-                // for each segment this event intersects with
-                while (i >= 0 && startMinute <= segments.get(i)
-                        .also { currSegment = it }.endMinute) {
+                while (--i >= 0 && endMinute < segments.startMinute[i]) {}
 
+                // for each segment this event intersects with, i being the
+                // current segment
+                while (i >= 0 && startMinute <= segments.endMinute[i]) {
+                    val currColor: Int = segments.color[i]
                     // if the segment is already a conflict ignore it
-                    if (currSegment.color == CONFLICT_COLOR) {
+                    if (currColor == CONFLICT_COLOR) {
                         i--
                         continue
                     }
                     // if the event ends before the segment and wouldn't create
                     // a segment that is too small split off the right side
-                    if (endMinute < currSegment.endMinute - minMinutes) {
-                        val rhs = DNASegment()
-                        rhs.endMinute = currSegment.endMinute
-                        rhs.color = currSegment.color
-                        rhs.startMinute = endMinute + 1
-                        rhs.day = currSegment.day
-                        currSegment.endMinute = endMinute
-                        segments.add(i + 1, rhs)
-                        // Equivalent to strands.get(rhs.color)?.count++
-                        // but there is no null safe invocation for ++
-                        strands.get(rhs.color)?.count = strands.get(rhs.color)?.count?.inc() as Int
-                        if (DEBUG) {
-                            Log.d(
-                                TAG, "Added rhs, curr:" + currSegment.toString() + " i:" +
-                                    segments.get(i).toString()
-                            )
-                        }
+                    if (endMinute < segments.endMinute[i] - minMinutes) {
+                        segments.insert(i + 1, endMinute + 1, segments.endMinute[i], currColor,
+                            segments.day[i])
+                        segments.endMinute[i] = endMinute
+                        strands.get(currColor).count++
                     }
                     // if the event starts after the segment and wouldn't create
                     // a segment that is too small split off the left side
-                    if (startMinute > currSegment.startMinute + minMinutes) {
-                        val lhs = DNASegment()
-                        lhs.startMinute = currSegment.startMinute
-                        lhs.color = currSegment.color
-                        lhs.endMinute = startMinute - 1
-                        lhs.day = currSegment.day
-                        currSegment.startMinute = startMinute
+                    if (startMinute > segments.startMinute[i] + minMinutes) {
+                        segments.insert(i, segments.startMinute[i], startMinute - 1, currColor,
+                            segments.day[i])
                         // increment i so that we are at the right position when
                         // referencing the segments to the right and left of the
                         // current segment.
-                        segments.add(i++, lhs)
-                        strands.get(lhs.color)?.count = strands.get(lhs.color)?.count?.inc() as Int
-                        if (DEBUG) {
-                            Log.d(
-                                TAG, "Added lhs, curr:" + currSegment.toString() + " i:" +
-                                    segments.get(i).toString()
-                            )
-                        }
+                        i++
+                        segments.startMinute[i] = startMinute
+                        strands.get(currColor).count++
                     }
                     // if the right side is black merge this with the segment to
                     // the right if they're on the same day and overlap
                     if (i + 1 < segments.size) {
-                        val rhs: DNASegment = segments.get(i + 1)
-                        if (rhs.color == CONFLICT_COLOR && currSegment.day == rhs.day &&
-                            rhs.startMinute <= currSegment.endMinute + 1) {
-                            rhs.startMinute = Math.min(currSegment.startMinute, rhs.startMinute)
-                            segments.remove(currSegment)
-                            strands.get(currSegment.color)?.count =
-                                strands.get(currSegment.color)?.count?.dec() as Int
-                            // point at the new current segment
-                            currSegment = rhs
+                        val rhs = i + 1
+                        if (segments.color[rhs] == CONFLICT_COLOR &&
+                            segments.day[i] == segments.day[rhs] &&
+                            segments.startMinute[rhs] <= segments.endMinute[i] + 1) {
+                            segments.startMinute[rhs] =
+                                Math.min(segments.startMinute[i], segments.startMinute[rhs])
+                            strands.get(segments.color[i]).count--
+                            // the merged segment moves down to i
+                            segments.remove(i)
                         }
                     }
                     // if the left side is black merge this with the segment to
                     // the left if they're on the same day and overlap
                     if (i - 1 >= 0) {
-                        val lhs: DNASegment = segments.get(i - 1)
-                        if (lhs.color == CONFLICT_COLOR && currSegment.day == lhs.day &&
-                            lhs.endMinute >= currSegment.startMinute - 1) {
-                            lhs.endMinute = Math.max(currSegment.endMinute, lhs.endMinute)
-                            segments.remove(currSegment)
-                            strands.get(currSegment.color)?.count =
-                                strands.get(currSegment.color)?.count?.dec() as Int
-                            // point at the new current segment
-                            currSegment = lhs
-                            // point i at the new current segment in case new
-                            // code is added
+                        val lhs = i - 1
+                        if (segments.color[lhs] == CONFLICT_COLOR &&
+                            segments.day[i] == segments.day[lhs] &&
+                            segments.endMinute[lhs] >= segments.startMinute[i] - 1) {
+                            segments.endMinute[lhs] =
+                                Math.max(segments.endMinute[i], segments.endMinute[lhs])
+                            strands.get(segments.color[i]).count--
+                            segments.remove(i)
+                            // point i at the new current segment
                             i--
                         }
                     }
                     // if we're still not black, decrement the count for the
                     // color being removed, change this to black, and increment
                     // the black count
-                    if (currSegment.color != CONFLICT_COLOR) {
-                        strands.get(currSegment.color)?.count =
-                            strands.get(currSegment.color)?.count?.dec() as Int
-                        currSegment.color = CONFLICT_COLOR
-                        strands.get(CONFLICT_COLOR)?.count =
-                            strands.get(CONFLICT_COLOR)?.count?.inc() as Int
+                    if (segments.color[i] != CONFLICT_COLOR) {
+                        strands.get(segments.color[i]).count--
+                        segments.color[i] = CONFLICT_COLOR
+                        strands.get(CONFLICT_COLOR).count++
                     }
                     i--
                 }
             }
             // If this event extends beyond the last segment add a new segment
-            if (endMinute > lastSegment.endMinute) {
-                addNewSegment(
-                    segments, event, strands, firstJulianDay, lastSegment.endMinute,
-                    minMinutes
-                )
+            val lastEndMinute: Int = segments.trackedEndMinute()
+            if (endMinute > lastEndMinute) {
+                addNewSegment(segments, strands, color, startDay, startTime, endDay, endTime,
+                    firstJulianDay, lastEndMinute, minMinutes)
             }
         }
-        weaveDNAStrands(segments, firstJulianDay, strands, top, bottom, dayXs)
+        weaveDNAStrands(segments, firstJulianDay, strands, top, bottom, dayXs, recycled)
         return strands
     }
 
     // This figures out allDay colors as allDay events are found
     private fun addAllDayToStrands(
-        event: Event?,
-        strands: HashMap<Int, DNAStrand>,
+        events: EventTable,
+        row: Int,
+        strands: SparseArray<DNAStrand>,
         firstJulianDay: Int,
         numDays: Int
     ) {
-        val strand = getOrCreateStrand(strands, CONFLICT_COLOR)
+        val strand: DNAStrand = getOrCreateStrand(strands, CONFLICT_COLOR)
         // if we haven't initialized the allDay portion create it now
-        if (strand?.allDays == null) {
-            strand?.allDays = IntArray(numDays)
+        var allDays: IntArray? = strand.allDays
+        if (allDays == null) {
+            allDays = IntArray(numDays)
+            strand.allDays = allDays
         }
 
         // For each day this event is on update the color
-        val end: Int = Math.min((event?.endDay ?: 0) - firstJulianDay, numDays - 1)
-        for (i in Math.max((event?.startDay ?: 0) - firstJulianDay, 0)..end) {
-            if (strand?.allDays!![i] != 0) {
+        val end: Int = Math.min(events.endDay[row] - firstJulianDay, numDays - 1)
+        for (i in Math.max(events.startDay[row] - firstJulianDay, 0)..end) {
+            if (allDays[i] != 0) {
                 // if this day already had a color, it is now a conflict
-                strand?.allDays!![i] = CONFLICT_COLOR
+                allDays[i] = CONFLICT_COLOR
             } else {
                 // else it's just the color of the event
-                strand?.allDays!![i] = event?.color as Int
+                allDays[i] = events.color[row]
             }
         }
     }
@@ -1074,58 +1070,52 @@ object Utils {
     // This processes all the segments, sorts them by color, and generates a
     // list of points to draw
     private fun weaveDNAStrands(
-        segments: LinkedList<DNASegment>,
+        segments: DNASegments,
         firstJulianDay: Int,
-        strands: HashMap<Int, DNAStrand>,
+        strands: SparseArray<DNAStrand>,
         top: Int,
         bottom: Int,
-        dayXs: IntArray
+        dayXs: IntArray,
+        recycled: SparseArray<DNAStrand>?
     ) {
         // First, get rid of any colors that ended up with no segments
-        val strandIterator = strands.values.iterator()
-        while (strandIterator.hasNext()) {
-            val strand = strandIterator.next()
+        for (s in strands.size() - 1 downTo 0) {
+            val strand: DNAStrand = strands.valueAt(s)
             if (strand.count < 1 && strand.allDays == null) {
-                strandIterator.remove()
+                strands.removeAt(s)
                 continue
             }
-            strand.points = FloatArray(strand.count * 4)
+            val size = strand.count * 4
+            val points: FloatArray? = recycled?.get(strand.color)?.points
+            strand.points = if (points != null && points.size >= size) points else FloatArray(size)
             strand.position = 0
         }
+        val height = bottom - top
+        val workDayHeight = height * 3 / 4
+        val remainderHeight = (height - workDayHeight) / 2
         // Go through each segment and compute its points
-        for (segment in segments) {
+        for (s in 0 until segments.size) {
             // Add the points to the strand of that color
-            val strand: DNAStrand? = strands.get(segment.color)
-            val dayIndex = segment.day - firstJulianDay
-            val dayStartMinute = segment.startMinute % DAY_IN_MINUTES
-            val dayEndMinute = segment.endMinute % DAY_IN_MINUTES
-            val height = bottom - top
-            val workDayHeight = height * 3 / 4
-            val remainderHeight = (height - workDayHeight) / 2
+            val strand: DNAStrand = strands.get(segments.color[s])
+            val dayIndex = segments.day[s] - firstJulianDay
+            val dayStartMinute = segments.startMinute[s] % DAY_IN_MINUTES
+            val dayEndMinute = segments.endMinute[s] % DAY_IN_MINUTES
             val x = dayXs[dayIndex]
-            var y0 = 0
-            var y1 = 0
-            y0 = top + getPixelOffsetFromMinutes(dayStartMinute, workDayHeight, remainderHeight)
-            y1 = top + getPixelOffsetFromMinutes(dayEndMinute, workDayHeight, remainderHeight)
+            val y0 = top + getPixelOffsetFromMinutes(dayStartMinute, workDayHeight, remainderHeight)
+            val y1 = top + getPixelOffsetFromMinutes(dayEndMinute, workDayHeight, remainderHeight)
             if (DEBUG) {
                 Log.d(
                     TAG,
-                    "Adding " + Integer.toHexString(segment.color).toString() + " at x,y0,y1: " + x
-                        .toString() + " " + y0.toString() + " " + y1.toString() +
-                        " for " + dayStartMinute.toString() + " " + dayEndMinute
+                    "Adding " + Integer.toHexString(segments.color[s]).toString() +
+                        " at x,y0,y1: " + x.toString() + " " + y0.toString() + " " +
+                        y1.toString() + " for " + dayStartMinute.toString() + " " + dayEndMinute
                 )
             }
-            strand?.points!![strand.position] = x.toFloat()
-            strand.position = strand.position.inc() as Int
-
-            strand.points!![strand.position] = y0.toFloat()
-            strand.position = strand.position.inc() as Int
-
-            strand.points!![strand.position] = x.toFloat()
-            strand.position = strand.position.inc() as Int
-
-            strand.points!![strand.position] = y1.toFloat()
-            strand.position = strand.position.inc() as Int
+            val points: FloatArray = strand.points as FloatArray
+            points[strand.position++] = x.toFloat()
+            points[strand.position++] = y0.toFloat()
+            points[strand.position++] = x.toFloat()
+            points[strand.position++] = y1.toFloat()
         }
     }
 
@@ -1152,72 +1142,74 @@ object Utils {
     }
 
     /**
-     * Add a new segment based on the event provided. This will handle splitting
+     * Add a new segment for the given times. This will handle splitting
      * segments across day boundaries and ensures a minimum size for segments.
      */
     private fun addNewSegment(
-        segments: LinkedList<DNASegment>,
-        event: Event,
-        strands: HashMap<Int, DNAStrand>,
+        segments: DNASegments,
+        strands: SparseArray<DNAStrand>,
+        color: Int,
+        startDay: Int,
+        startTime: Int,
+        endDay: Int,
+        endTime: Int,
         firstJulianDay: Int,
         minStart: Int,
         minMinutes: Int
     ) {
-        var event: Event = event
-        var minStart = minStart
-        if (event.startDay > event.endDay) {
-            Log.wtf(TAG, "Event starts after it ends: " + event.toString())
+        if (startDay > endDay) {
+            Log.wtf(TAG, "Event starts after it ends: day " + startDay + " to " + endDay)
         }
-        // If this is a multiday event split it up by day
-        if (event.startDay !== event.endDay) {
-            val lhs = Event()
-            lhs.color = event.color
-            lhs.startDay = event.startDay
-            // the first day we want the start time to be the actual start time
-            lhs.startTime = event.startTime
-            lhs.endDay = lhs.startDay
-            lhs.endTime = DAY_IN_MINUTES - 1
-            // Nearly recursive iteration!
-            while (lhs.startDay !== event.endDay) {
-                addNewSegment(segments, lhs, strands, firstJulianDay, minStart, minMinutes)
-                // The days in between are all day, even though that shouldn't
-                // actually happen due to the allday filtering
-                lhs.startDay++
-                lhs.endDay = lhs.startDay
-                lhs.startTime = 0
-                minStart = 0
-            }
-            // The last day we want the end time to be the actual end time
-            lhs.endTime = event.endTime
-            event = lhs
+        var day = startDay
+        var dayStartTime = startTime
+        var dayMinStart = minStart
+        // If this is a multiday event split it up by day. The days in between
+        // are all day, even though that shouldn't actually happen due to the
+        // allday filtering
+        while (day < endDay) {
+            addDaySegment(segments, strands, color, day, dayStartTime, DAY_IN_MINUTES - 1,
+                firstJulianDay, dayMinStart, minMinutes)
+            day++
+            dayStartTime = 0
+            dayMinStart = 0
         }
-        // Create the new segment and compute its fields
-        val segment = DNASegment()
-        val dayOffset: Int = (event.startDay - firstJulianDay) * DAY_IN_MINUTES
+        // The last day we want the end time to be the actual end time
+        addDaySegment(segments, strands, color, day, dayStartTime, endTime, firstJulianDay,
+            dayMinStart, minMinutes)
+    }
+
+    private fun addDaySegment(
+        segments: DNASegments,
+        strands: SparseArray<DNAStrand>,
+        color: Int,
+        day: Int,
+        startTime: Int,
+        endTime: Int,
+        firstJulianDay: Int,
+        minStart: Int,
+        minMinutes: Int
+    ) {
+        val dayOffset: Int = (day - firstJulianDay) * DAY_IN_MINUTES
         val endOfDay = dayOffset + DAY_IN_MINUTES - 1
         // clip the start if needed
-        segment.startMinute = Math.max(dayOffset + event.startTime, minStart)
+        val startMinute: Int = Math.max(dayOffset + startTime, minStart)
         // and extend the end if it's too small, but not beyond the end of the
         // day
-        val minEnd: Int = Math.min(segment.startMinute + minMinutes, endOfDay)
-        segment.endMinute = Math.max(dayOffset + event.endTime, minEnd)
-        if (segment.endMinute > endOfDay) {
-            segment.endMinute = endOfDay
+        val minEnd: Int = Math.min(startMinute + minMinutes, endOfDay)
+        var endMinute: Int = Math.max(dayOffset + endTime, minEnd)
+        if (endMinute > endOfDay) {
+            endMinute = endOfDay
         }
-        segment.color = event.color
-        segment.day = event.startDay
-        segments.add(segment)
+        segments.insert(segments.size, startMinute, endMinute, color, day)
         // increment the count for the correct color or add a new strand if we
         // don't have that color yet
-        val strand = getOrCreateStrand(strands, segment.color)
-        strand?.count
-        strand?.count = strand?.count?.inc() as Int
+        getOrCreateStrand(strands, color).count++
     }
 
     /**
      * Try to get a strand of the given color. Create it if it doesn't exist.
      */
-    private fun getOrCreateStrand(strands: HashMap<Int, DNAStrand>, color: Int): DNAStrand? {
+    private fun getOrCreateStrand(strands: SparseArray<DNAStrand>, color: Int): DNAStrand {
         var strand: DNAStrand? = strands.get(color)
         if (strand == null) {
             strand = DNAStrand()
@@ -1561,17 +1553,68 @@ object Utils {
     class DNAStrand {
         @JvmField var points: FloatArray? = null
         @JvmField var allDays: IntArray? = null // color for the allday, 0 means no event
-        @JvmField var position = 0
+        @JvmField var position = 0 // the number of values in points to draw
         @JvmField var color = 0
         @JvmField var count = 0
     }
 
+    // The segments of a week's DNA in parallel arrays, ordered by start time.
     // A segment is a single continuous length of time occupied by a single
-    // color. Segments should never span multiple days.
-    private class DNASegment {
-        var startMinute = 0 // in minutes since the start of the week =
-        var endMinute = 0
-        var color = 0 // Calendar color or black for conflicts =
-        var day = 0 // quick reference to the day this segment is on =
+    // color. Segments should never span multiple days. One segment can be
+    // tracked so its end is known even after it has been removed.
+    private class DNASegments {
+        var size = 0
+        var startMinute = IntArray(16) // in minutes since the start of the week
+        var endMinute = IntArray(16)
+        var color = IntArray(16) // Calendar color or black for conflicts
+        var day = IntArray(16) // quick reference to the day this segment is on
+        private var mTracked = -1
+        private var mTrackedEndMinute = 0
+
+        fun insert(index: Int, start: Int, end: Int, segmentColor: Int, segmentDay: Int) {
+            if (size == startMinute.size) {
+                val capacity = size * 2
+                startMinute = Arrays.copyOf(startMinute, capacity)
+                endMinute = Arrays.copyOf(endMinute, capacity)
+                color = Arrays.copyOf(color, capacity)
+                day = Arrays.copyOf(day, capacity)
+            }
+            val moved = size - index
+            System.arraycopy(startMinute, index, startMinute, index + 1, moved)
+            System.arraycopy(endMinute, index, endMinute, index + 1, moved)
+            System.arraycopy(color, index, color, index + 1, moved)
+            System.arraycopy(day, index, day, index + 1, moved)
+            startMinute[index] = start
+            endMinute[index] = end
+            color[index] = segmentColor
+            day[index] = segmentDay
+            size++
+            if (mTracked >= index) {
+                mTracked++
+            }
+        }
+
+        fun remove(index: Int) {
+            if (index == mTracked) {
+                mTrackedEndMinute = endMinute[index]
+                mTracked = -1
+            } else if (index < mTracked) {
+                mTracked--
+            }
+            val moved = size - index - 1
+            System.arraycopy(startMinute, index + 1, startMinute, index, moved)
+            System.arraycopy(endMinute, index + 1, endMinute, index, moved)
+            System.arraycopy(color, index + 1, color, index, moved)
+            System.arraycopy(day, index + 1, day, index, moved)
+            size--
+        }
+
+        fun track(index: Int) {
+            mTracked = index
+        }
+
+        fun trackedEndMinute(): Int {
+            return if (mTracked >= 0) endMinute[mTracked] else mTrackedEndMinute
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.calendar.month
+
+import com.android.calendar.EventTable
+import java.util.Arrays
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Maps each day of a loaded range to the rows of an [EventTable] that fall on
+ * it. The rows of day d are rows[offsets[d]] up to rows[offsets[d + 1]], in
+ * table order. The arrays are only grown, so rebuilding the index for every
+ * load doesn't allocate once it has reached the size of a typical month.
+ */
+class EventDayIndex {
+    var numDays = 0
+        private set
+
+    /** Changes every time the index is built, so drawings can be keyed by it. */
+    var generation = 0
+        private set
+    @JvmField var offsets: IntArray = IntArray(1)
+    @JvmField var rows: IntArray = IntArray(0)
+
+    /**
+     * Rebuilds the index for numDays days starting at firstJulianDay.
+     */
+    fun build(events: EventTable?, firstJulianDay: Int, numDays: Int) {
+        this.numDays = numDays
+        generation = mLastGeneration.incrementAndGet()
+        if (offsets.size < numDays + 1) {
+            offsets = IntArray(numDays + 1)
+        }
+        Arrays.fill(offsets, 0, numDays + 1, 0)
+        if (events == null) {
+            return
+        }
+
+        // Count the events on each day, shifted by one so that the running
+        // total leaves the start of each day in offsets.
+        for (row in 0 until events.size) {
+            val startDay: Int = Math.max(events.startDay[row] - firstJulianDay, 0)
+            val endDay: Int = Math.min(events.endDay[row] - firstJulianDay + 1, numDays)
+            for (day in startDay until endDay) {
+                offsets[day + 1]++
+            }
+        }
+        for (day in 0 until numDays) {
+            offsets[day + 1] += offsets[day]
+        }
+        if (rows.size < offsets[numDays]) {
+            rows = IntArray(offsets[numDays])
+        }
+
+        // Fill in the rows, using offsets[day] as the fill position and
+        // moving it back afterwards.
+        for (row in 0 until events.size) {
+            val startDay: Int = Math.max(events.startDay[row] - firstJulianDay, 0)
+            val endDay: Int = Math.min(events.endDay[row] - firstJulianDay + 1, numDays)
+            for (day in startDay until endDay) {
+                rows[offsets[day]++] = row
+            }
+        }
+        for (day in numDays downTo 1) {
+            offsets[day] = offsets[day - 1]
+        }
+        offsets[0] = 0
+    }
+
+    fun getStart(day: Int): Int {
+        return offsets[day]
+    }
+
+    fun getEnd(day: Int): Int {
+        return offsets[day + 1]
+    }
+
+    fun getCount(day: Int): Int {
+        return offsets[day + 1] - offsets[day]
+    }
+
+    companion object {
+        private val mLastGeneration: AtomicInteger = AtomicInteger()
+    }
+}
@@ -19,6 +19,8 @@ import android.content.Context
 import android.content.res.Configuration
 import android.os.Handler
 import android.os.Message
+import android.text.TextUtils
+import android.text.format.DateFormat
 import android.text.format.Time
 import android.util.Log
 import android.view.GestureDetector
@@ -31,10 +33,9 @@ import android.widget.AbsListView.LayoutParams
 import com.android.calendar.CalendarController
 import com.android.calendar.CalendarController.EventType
 import com.android.calendar.CalendarController.ViewType
-import com.android.calendar.Event
+import com.android.calendar.EventTable
 import com.android.calendar.R
 import com.android.calendar.Utils
-import java.util.ArrayList
 import java.util.HashMap
 
 class MonthByWeekAdapter(context: Context?, params: HashMap<String?, Int?>) :
@@ -48,9 +49,15 @@ class MonthByWeekAdapter(context: Context?, params: HashMap<String?, Int?>) :
     protected var mIsMiniMonth = true
     protected var mOrientation: Int = Configuration.ORIENTATION_LANDSCAPE
     private val mShowAgendaWithMonth: Boolean
-    protected var mEventDayList: ArrayList<ArrayList<Event>> = ArrayList<ArrayList<Event>>()
-    protected var mEvents: ArrayList<Event>? = null
+    protected var mEventDayIndex: EventDayIndex = EventDayIndex()
+    protected var mEvents: EventTable? = null
+    private val mDnaCache: MonthDnaCache = MonthDnaCache()
     private var mAnimateToday = false
+
+    // The settings the cached week rows were drawn with, see refresh
+    private var mRenderTimeZone: String? = null
+    private var mRender24Hour = false
+    private var mRenderFirstDayOfWeek = -1
     private var mAnimateTime: Long = 0
     private val mEventDialogHandler: Handler? = null
     var mClickedView: MonthWeekEventsView? = null
@@ -59,11 +66,38 @@ class MonthByWeekAdapter(context: Context?, params: HashMap<String?, Int?>) :
     var mClickedXLocation = 0f // Used to find which day was clicked
     var mClickTime: Long = 0 // Used to calculate minimum click animation time
 
+    // How many week views getView created and how many it rebound
+    private var mViewsCreated = 0
+    private var mViewsRecycled = 0
+
     fun animateToday() {
         mAnimateToday = true
         mAnimateTime = System.currentTimeMillis()
     }
 
+    /**
+     * Returns the number of week views this adapter has created.
+     */
+    fun getViewsCreated(): Int {
+        return mViewsCreated
+    }
+
+    /**
+     * Returns the number of times this adapter has bound a recycled week
+     * view instead of creating one.
+     */
+    fun getViewsRecycled(): Int {
+        return mViewsRecycled
+    }
+
+    private fun getTodayWeek(): Int {
+        val today: Time = mToday as Time
+        today.setToNow()
+        return Utils.getWeeksSinceEpochFromJulianDay(
+            Time.getJulianDay(today.toMillis(false), today.gmtoff), mFirstDayOfWeek
+        )
+    }
+
     @Override
     protected override fun init() {
         super.init()
@@ -74,6 +108,9 @@ class MonthByWeekAdapter(context: Context?, params: HashMap<String?, Int?>) :
         mToday = Time(mHomeTimeZone)
         mToday?.setToNow()
         mTempTime = Time(mHomeTimeZone)
+        // Theme changes recreate the activity and so its adapter, and the
+        // cached rows may have been drawn with the old theme's colors.
+        MonthWeekEventsView.clearRenderCache()
     }
 
     private fun updateTimeZones() {
@@ -94,7 +131,11 @@ class MonthByWeekAdapter(context: Context?, params: HashMap<String?, Int?>) :
         notifyDataSetChanged()
     }
 
-    fun setEvents(firstJulianDay: Int, numDays: Int, events: ArrayList<Event>?) {
+    /**
+     * Shows the events of a window built by the loader. The loader doesn't
+     * rebuild the window's day index while it is shown, so it is used as is.
+     */
+    fun setEvents(window: MonthEventWindow) {
         if (mIsMiniMonth) {
             if (Log.isLoggable(TAG, Log.ERROR)) {
                 Log.e(
@@ -104,119 +145,98 @@ class MonthByWeekAdapter(context: Context?, params: HashMap<String?, Int?>) :
             }
             return
         }
-        mEvents = events
-        mFirstJulianDay = firstJulianDay
-        mQueryDays = numDays
-        // Create a new list, this is necessary since the weeks are referencing
-        // pieces of the old list
-        val eventDayList: ArrayList<ArrayList<Event>> = ArrayList<ArrayList<Event>>()
-        for (i in 0 until numDays) {
-            eventDayList.add(ArrayList<Event>())
-        }
-        if (events == null || events.size == 0) {
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "No events. Returning early--go schedule something fun.")
-            }
-            mEventDayList = eventDayList
-            refresh()
-            return
-        }
-
-        // Compute the new set of days with events
-        for (event in events) {
-            var startDay: Int = event.startDay - mFirstJulianDay
-            var endDay: Int = event.endDay - mFirstJulianDay + 1
-            if (startDay < numDays || endDay >= 0) {
-                if (startDay < 0) {
-                    startDay = 0
-                }
-                if (startDay > numDays) {
-                    continue
-                }
-                if (endDay < 0) {
-                    continue
-                }
-                if (endDay > numDays) {
-                    endDay = numDays
-                }
-                for (j in startDay until endDay) {
-                    eventDayList.get(j).add(event)
-                }
-            }
-        }
+        mEvents = window.events
+        mFirstJulianDay = window.firstJulianDay
+        mQueryDays = window.numDays
+        mEventDayIndex = window.dayIndex
+        mDnaCache.setEvents(window.events, window.firstJulianDay, window.numDays)
         if (Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "Processed " + events.size.toString() + " events.")
+            Log.d(TAG, "Processed " + window.events.size.toString() + " events.")
         }
-        mEventDayList = eventDayList
         refresh()
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     override fun getView(position: Int, convertView: View?, parent: ViewGroup): View {
         if (mIsMiniMonth) {
             return super.getView(position, convertView, parent)
         }
-        var v: MonthWeekEventsView
-        val params = LayoutParams(
-            LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT
-        )
-        var drawingParams: HashMap<String?, Int?>? = null
-        var isAnimatingToday = false
+        val v: MonthWeekEventsView
         if (convertView != null) {
             v = convertView as MonthWeekEventsView
-            // Checking updateToday uses the current params instead of the new
-            // params, so this is assuming the view is relatively stable
-            if (mAnimateToday && v.updateToday(mSelectedDay!!.timezone)) {
-                val currentTime: Long = System.currentTimeMillis()
-                // If it's been too long since we tried to start the animation
-                // don't show it. This can happen if the user stops a scroll
-                // before reaching today.
-                if (currentTime - mAnimateTime > ANIMATE_TODAY_TIMEOUT) {
-                    mAnimateToday = false
-                    mAnimateTime = 0
-                } else {
-                    isAnimatingToday = true
-                    // There is a bug that causes invalidates to not work some
-                    // of the time unless we recreate the view.
-                    v = MonthWeekEventsView(mContext)
-                }
-            } else {
-                drawingParams = v.getTag() as HashMap<String?, Int?>
-            }
+            mViewsRecycled++
         } else {
             v = MonthWeekEventsView(mContext)
+            val params = LayoutParams(
+                LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT
+            )
+            v.setLayoutParams(params)
+            v.setClickable(true)
+            v.setOnTouchListener(this)
+            mViewsCreated++
         }
-        if (drawingParams == null) {
-            drawingParams = HashMap<String?, Int?>()
+        var isAnimatingToday = false
+        if (mAnimateToday) {
+            // If it's been too long since we tried to start the animation
+            // don't show it. This can happen if the user stops a scroll
+            // before reaching today.
+            if (System.currentTimeMillis() - mAnimateTime > ANIMATE_TODAY_TIMEOUT) {
+                mAnimateToday = false
+                mAnimateTime = 0
+            } else if (position == getTodayWeek()) {
+                isAnimatingToday = true
+                mAnimateToday = false
+            }
         }
-        drawingParams.clear()
-        v.setLayoutParams(params)
-        v.setClickable(true)
-        v.setOnTouchListener(this)
         var selectedDay = -1
         if (mSelectedWeek === position) {
             selectedDay = mSelectedDay!!.weekDay
         }
-        drawingParams.put(
-            SimpleWeekView.VIEW_PARAMS_HEIGHT,
-            (parent.getHeight() + parent.getTop()) / mNumWeeks
-        )
-        drawingParams.put(SimpleWeekView.VIEW_PARAMS_SELECTED_DAY, selectedDay)
-        drawingParams.put(SimpleWeekView.VIEW_PARAMS_SHOW_WK_NUM, if (mShowWeekNumber) 1 else 0)
-        drawingParams.put(SimpleWeekView.VIEW_PARAMS_WEEK_START, mFirstDayOfWeek)
-        drawingParams.put(SimpleWeekView.VIEW_PARAMS_NUM_DAYS, mDaysPerWeek)
-        drawingParams.put(SimpleWeekView.VIEW_PARAMS_WEEK, position)
-        drawingParams.put(SimpleWeekView.VIEW_PARAMS_FOCUS_MONTH, mFocusMonth)
-        drawingParams.put(MonthWeekEventsView.VIEW_PARAMS_ORIENTATION, mOrientation)
-        if (isAnimatingToday) {
-            drawingParams.put(MonthWeekEventsView.VIEW_PARAMS_ANIMATE_TODAY, 1)
-            mAnimateToday = false
+        val weekParams: WeekParams = mWeekParams
+        weekParams.height = (parent.getHeight() + parent.getTop()) / mNumWeeks
+        weekParams.selectedDay = selectedDay
+        weekParams.showWeekNum = mShowWeekNumber
+        weekParams.weekStart = mFirstDayOfWeek
+        weekParams.numDays = mDaysPerWeek
+        weekParams.week = position
+        weekParams.focusMonth = mFocusMonth
+        weekParams.orientation = mOrientation
+        weekParams.animateToday = isAnimatingToday
+        v.setWeekParams(weekParams, mSelectedDay!!.timezone)
+        v.setTimeFormat(mRenderTimeZone, mRender24Hour)
+        sendEventsToView(v)
+        if (isAnimatingToday && Log.isLoggable(TAG, Log.DEBUG)) {
+            // Jumping to today should rebind the views already in the list
+            Log.d(TAG, "Bound today's week, views created: " + mViewsCreated +
+                " recycled: " + mViewsRecycled)
         }
-        v.setWeekParams(drawingParams, mSelectedDay!!.timezone)
         return v
     }
 
+    private fun sendEventsToView(v: MonthWeekEventsView) {
+        if (mEventDayIndex.numDays == 0) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "No events loaded, did not pass any events to view.")
+            }
+            v.setEvents(null, 0, null)
+            return
+        }
+        val viewJulianDay: Int = v.getFirstJulianDay()
+        val start = viewJulianDay - mFirstJulianDay
+        val end = start + mDaysPerWeek
+        if (start < 0 || end > mEventDayIndex.numDays) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(
+                    TAG, "Week is outside range of loaded events. viewStart: " + viewJulianDay +
+                        " eventsStart: " + mFirstJulianDay
+                )
+            }
+            v.setEvents(null, 0, null)
+            return
+        }
+        v.setEvents(mEventDayIndex, start, mEvents, mDnaCache)
+    }
+
     @Override
     internal override fun refresh() {
         mFirstDayOfWeek = Utils.getFirstDayOfWeek(mContext)
@@ -224,6 +244,16 @@ class MonthByWeekAdapter(context: Context?, params: HashMap<String?, Int?>) :
         mHomeTimeZone = Utils.getTimeZone(mContext, null)
         mOrientation = mContext.getResources().getConfiguration().orientation
         updateTimeZones()
+        // The cached rows are keyed by their events and layout, but not by
+        // the settings they format times and weeks with.
+        val is24Hour: Boolean = DateFormat.is24HourFormat(mContext)
+        if (!TextUtils.equals(mHomeTimeZone, mRenderTimeZone) || is24Hour != mRender24Hour ||
+            mFirstDayOfWeek != mRenderFirstDayOfWeek) {
+            mRenderTimeZone = mHomeTimeZone
+            mRender24Hour = is24Hour
+            mRenderFirstDayOfWeek = mFirstDayOfWeek
+            MonthWeekEventsView.clearRenderCache()
+        }
         notifyDataSetChanged()
     }
 
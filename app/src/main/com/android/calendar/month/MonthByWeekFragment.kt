@@ -18,7 +18,6 @@ package com.android.calendar.month
 import android.app.Activity
 import android.app.LoaderManager
 import android.content.ContentUris
-import android.content.CursorLoader
 import android.content.Loader
 import android.content.res.Resources
 import android.database.Cursor
@@ -48,7 +47,6 @@ import com.android.calendar.Event
 import com.android.calendar.R
 import com.android.calendar.Utils
 
-import java.util.ArrayList
 import java.util.Calendar
 import java.util.HashMap
 
@@ -61,8 +59,15 @@ class MonthByWeekFragment @JvmOverloads constructor(
     protected var mHideDeclined = false
     protected var mFirstLoadedJulianDay = 0
     protected var mLastLoadedJulianDay = 0
-    private var mLoader: CursorLoader? = null
+    private var mLoader: MonthEventsLoader? = null
     private var mEventUri: Uri? = null
+
+    // The events being shown, and what the loader was last asked to load.
+    // Windows are built by the loader and only swapped in here.
+    private var mEventWindow: MonthEventWindow? = null
+    private var mRequest: MonthEventsLoader.Request? = null
+    private var mEdgeMerged = false
+    private var mDeliveredCursor: Cursor? = null
     private val mDesiredDay: Time = Time()
 
     @Volatile
@@ -96,10 +101,18 @@ class MonthByWeekFragment @JvmOverloads constructor(
                 }
                 // Stop any previous loads while we update the uri
                 stopLoader()
+                val request: MonthEventsLoader.Request? = updateRequest()
+                if (request == null) {
+                    // Everything in range is loaded already, just keep
+                    // watching for changes.
+                    mLoader?.startLoading()
+                    return
+                }
 
                 // Start the loader again
-                mEventUri = updateUri()
-                mLoader?.setUri(mEventUri)
+                mRequest = request
+                mEventUri = request.uri
+                mLoader?.setRequest(request)
                 mLoader?.startLoading()
                 mLoader?.onContentChanged()
                 if (Log.isLoggable(TAG, Log.DEBUG)) {
@@ -117,51 +130,58 @@ class MonthByWeekFragment @JvmOverloads constructor(
                 mLoader = getLoaderManager().initLoader(
                         0, null,
                         this@MonthByWeekFragment
-                ) as? CursorLoader
+                ) as? MonthEventsLoader
             }
         }
     }
 
     /**
-     * Updates the uri used by the loader according to the current position of
-     * the listview.
+     * Updates the range to load according to the current position of the
+     * listview. If the new range overlaps the events already loaded, only the
+     * weeks entering the range are queried.
      *
-     * @return The new Uri to use
+     * @return The new request for the loader, or null if the range is already
+     * loaded
      */
-    private fun updateUri(): Uri {
+    private fun updateRequest(): MonthEventsLoader.Request? {
         val child: SimpleWeekView? = mListView?.getChildAt(0) as? SimpleWeekView
         if (child != null) {
             val julianDay: Int = child.getFirstJulianDay()
             mFirstLoadedJulianDay = julianDay
         }
+        mLastLoadedJulianDay = mFirstLoadedJulianDay + (mNumWeeks + 2 * WEEKS_BUFFER) * 7
+        val window: MonthEventWindow? = mEventWindow
+        var queryFirstJulianDay = mFirstLoadedJulianDay
+        var queryLastJulianDay = mLastLoadedJulianDay
+        var base: MonthEventWindow? = null
+        mEdgeMerged = false
+        if (window != null) {
+            if (mFirstLoadedJulianDay == window.firstJulianDay &&
+                mLastLoadedJulianDay == window.lastJulianDay) {
+                return null
+            } else if (mFirstLoadedJulianDay < window.firstJulianDay &&
+                mLastLoadedJulianDay >= window.firstJulianDay - 1) {
+                queryLastJulianDay = window.firstJulianDay - 1
+                base = window
+            } else if (mLastLoadedJulianDay > window.lastJulianDay &&
+                mFirstLoadedJulianDay <= window.lastJulianDay + 1) {
+                queryFirstJulianDay = window.lastJulianDay + 1
+                base = window
+            }
+        }
         // -1 to ensure we get all day events from any time zone
-        mTempTime.setJulianDay(mFirstLoadedJulianDay - 1)
+        mTempTime.setJulianDay(queryFirstJulianDay - 1)
         val start: Long = mTempTime.toMillis(true)
-        mLastLoadedJulianDay = mFirstLoadedJulianDay + (mNumWeeks + 2 * WEEKS_BUFFER) * 7
         // +1 to ensure we get all day events from any time zone
-        mTempTime.setJulianDay(mLastLoadedJulianDay + 1)
+        mTempTime.setJulianDay(queryLastJulianDay + 1)
         val end: Long = mTempTime.toMillis(true)
 
         // Create a new uri with the updated times
         val builder: Uri.Builder = Instances.CONTENT_URI.buildUpon()
         ContentUris.appendId(builder, start)
         ContentUris.appendId(builder, end)
-        return builder.build()
-    }
-
-    // Extract range of julian days from URI
-    private fun updateLoadedDays() {
-        val pathSegments = mEventUri?.getPathSegments()
-        val size: Int = pathSegments?.size as Int
-        if (size <= 2) {
-            return
-        }
-        val first: Long = (pathSegments[size - 2])?.toLong() as Long
-        val last: Long = (pathSegments[size - 1])?.toLong() as Long
-        mTempTime.set(first)
-        mFirstLoadedJulianDay = Time.getJulianDay(first, mTempTime.gmtoff)
-        mTempTime.set(last)
-        mLastLoadedJulianDay = Time.getJulianDay(last, mTempTime.gmtoff)
+        return MonthEventsLoader.Request(builder.build(), mFirstLoadedJulianDay,
+            mLastLoadedJulianDay, queryFirstJulianDay, queryLastJulianDay, base)
     }
 
     protected fun updateWhere(): String {
@@ -270,7 +290,7 @@ class MonthByWeekFragment @JvmOverloads constructor(
         if (mShowCalendarControls) {
             mListView?.postDelayed(mLoadingRunnable, mEventsLoadingDelay.toLong())
         } else {
-            mLoader = getLoaderManager().initLoader(0, null, this) as? CursorLoader
+            mLoader = getLoaderManager().initLoader(0, null, this) as? MonthEventsLoader
         }
         mAdapter?.setListView(mListView)
     }
@@ -296,17 +316,20 @@ class MonthByWeekFragment @JvmOverloads constructor(
         if (mIsMiniMonth) {
             return null
         }
-        var loader: CursorLoader?
+        var loader: MonthEventsLoader?
         synchronized(mUpdateLoader) {
             mFirstLoadedJulianDay =
                     (Time.getJulianDay(mSelectedDay.toMillis(true), mSelectedDay.gmtoff) -
                             mNumWeeks * 7 / 2)
-            mEventUri = updateUri()
+            mEventWindow = null
+            val request = updateRequest() as MonthEventsLoader.Request
+            mRequest = request
+            mEventUri = request.uri
             val where = updateWhere()
-            loader = CursorLoader(
-                    getActivity(), mEventUri, Event.EVENT_PROJECTION, where,
-                    null /* WHERE_CALENDARS_SELECTED_ARGS */, INSTANCES_SORT_ORDER
+            loader = MonthEventsLoader(
+                    getActivity(), Event.EVENT_PROJECTION, where, INSTANCES_SORT_ORDER
             )
+            loader?.setRequest(request)
             loader?.setUpdateThrottle(LOADER_THROTTLE_DELAY.toLong())
         }
         if (Log.isLoggable(TAG, Log.DEBUG)) {
@@ -322,6 +345,8 @@ class MonthByWeekFragment @JvmOverloads constructor(
         val prevHideDeclined = mHideDeclined
         mHideDeclined = Utils.getHideDeclinedEvents(mContext)
         if (prevHideDeclined != mHideDeclined && mLoader != null) {
+            // The events already loaded were filtered the old way
+            mEventWindow = null
             mLoader?.setSelection(updateWhere())
         }
         mDaysPerWeek = Utils.getDaysPerWeek(mContext)
@@ -342,24 +367,39 @@ class MonthByWeekFragment @JvmOverloads constructor(
                             mEventUri
                 )
             }
-            val cLoader: CursorLoader = loader as CursorLoader
-            if (mEventUri == null) {
-                mEventUri = cLoader.getUri()
-                updateLoadedDays()
+            val result: MonthEventsLoader.Result = data as? MonthEventsLoader.Result ?: return
+            val request: MonthEventsLoader.Request = result.request
+            if (mRequest == null) {
+                // The loader outlived a previous instance of this fragment,
+                // take over the range it was loading.
+                mRequest = request
+                mEventUri = request.uri
+                mFirstLoadedJulianDay = request.firstJulianDay
+                mLastLoadedJulianDay = request.lastJulianDay
             }
-            if (cLoader.getUri().compareTo(mEventUri) !== 0) {
+            if (request !== mRequest) {
                 // We've started a new query since this loader ran so ignore the
                 // result
                 return
             }
-            val events: ArrayList<Event?>? = ArrayList<Event?>()
-            Event.buildEventsFromCursor(
-                    events, data, mContext, mFirstLoadedJulianDay, mLastLoadedJulianDay
-            )
-            (mAdapter as MonthByWeekAdapter).setEvents(
-                    mFirstLoadedJulianDay,
-                    mLastLoadedJulianDay - mFirstLoadedJulianDay + 1, events as ArrayList<Event>?
-            )
+            if (result === mDeliveredCursor) {
+                // The loader hands back the cursor we already have whenever
+                // it is restarted.
+                return
+            }
+            mDeliveredCursor = result
+            if (request.isEdge && (mEdgeMerged || mEventWindow == null)) {
+                // The data changed since the new weeks were merged in, or the
+                // events they were to be merged with were dropped, so load
+                // the whole range again.
+                mEventWindow = null
+                mHandler.post(mUpdateLoader)
+                return
+            }
+            mEdgeMerged = request.isEdge
+            mEventWindow = result.window
+            (mAdapter as MonthByWeekAdapter).setEvents(result.window)
+            (loader as? MonthEventsLoader)?.setShownWindow(result.window)
         }
     }
 
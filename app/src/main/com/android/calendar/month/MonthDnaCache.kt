@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.calendar.month
+
+import android.content.Context
+import android.util.SparseArray
+import com.android.calendar.EventTable
+import com.android.calendar.Utils
+import java.util.Arrays
+import java.util.HashMap
+
+/**
+ * Builds the DNA strands of every week in the loaded range with one sweep
+ * over the month's events, so week views attach their strands instead of
+ * each filtering all the events. Strands are kept for one geometry at a
+ * time, as all the week rows of a month are the same size.
+ */
+class MonthDnaCache {
+    private var mEvents: EventTable? = null
+    private var mFirstJulianDay = 0
+    private var mLastJulianDay = -1
+
+    // Strands by the first Julian day of their week, null for weeks
+    // without events.
+    private val mWeeks: HashMap<Int, SparseArray<Utils.DNAStrand>?> =
+        HashMap<Int, SparseArray<Utils.DNAStrand>?>()
+    private var mDayXs: IntArray? = null
+    private var mTop = 0
+    private var mBottom = 0
+    private var mMinPixels = 0
+    private var mRows: IntArray = IntArray(0)
+    private var mActive: IntArray = IntArray(0)
+
+    /**
+     * Sets the events loaded for numDays days from firstJulianDay, sorted by
+     * start time, and drops the strands built for the previous ones.
+     */
+    fun setEvents(events: EventTable?, firstJulianDay: Int, numDays: Int) {
+        mEvents = events
+        mFirstJulianDay = firstJulianDay
+        mLastJulianDay = firstJulianDay + numDays - 1
+        mWeeks.clear()
+    }
+
+    /**
+     * Returns the strands for the week starting at firstJulianDay, building
+     * those of all the loaded weeks first if needed. Returns null if the week
+     * isn't loaded or has no events. The strands are shared and must not be
+     * changed or recycled.
+     */
+    fun get(
+        firstJulianDay: Int,
+        dayXs: IntArray,
+        top: Int,
+        bottom: Int,
+        minPixels: Int,
+        context: Context?
+    ): SparseArray<Utils.DNAStrand>? {
+        val events: EventTable = mEvents ?: return null
+        if (firstJulianDay < mFirstJulianDay ||
+            firstJulianDay + dayXs.size - 1 > mLastJulianDay) {
+            return null
+        }
+        if (!Arrays.equals(dayXs, mDayXs) || top != mTop || bottom != mBottom ||
+            minPixels != mMinPixels) {
+            mDayXs = dayXs.clone()
+            mTop = top
+            mBottom = bottom
+            mMinPixels = minPixels
+            mWeeks.clear()
+        }
+        if (!mWeeks.containsKey(firstJulianDay)) {
+            buildWeeks(events, firstJulianDay, context)
+        }
+        return mWeeks.get(firstJulianDay)
+    }
+
+    /**
+     * Builds the strands of the loaded weeks that start on the same day of
+     * the week as weekJulianDay. Each week gets the events running during it
+     * in start time order, the same ones createDNAStrands would pick out of
+     * the whole table.
+     */
+    private fun buildWeeks(events: EventTable, weekJulianDay: Int, context: Context?) {
+        val dayXs: IntArray = mDayXs as IntArray
+        val numDays: Int = dayXs.size
+        if (mRows.size < events.size) {
+            mRows = IntArray(events.size)
+            mActive = IntArray(events.size)
+        }
+        val rows: IntArray = mRows
+        // Events that started before the current week and run into it
+        val active: IntArray = mActive
+        var activeCount = 0
+        var next = 0
+        var weekFirst: Int = weekJulianDay -
+            (weekJulianDay - mFirstJulianDay) / DAYS_PER_WEEK * DAYS_PER_WEEK
+        while (weekFirst + numDays - 1 <= mLastJulianDay) {
+            val weekLast: Int = weekFirst + numDays - 1
+            while (next < events.size && events.startDay[next] < weekFirst) {
+                active[activeCount++] = next++
+            }
+            var count = 0
+            for (i in 0 until activeCount) {
+                if (events.endDay[active[i]] >= weekFirst) {
+                    rows[count++] = active[i]
+                }
+            }
+            while (next < events.size && events.startDay[next] <= weekLast) {
+                rows[count++] = next++
+            }
+            mWeeks.put(weekFirst, if (count == 0) null else Utils.createDNAStrands(weekFirst,
+                events, rows, count, mTop, mBottom, mMinPixels, dayXs, context, null))
+
+            activeCount = 0
+            for (i in 0 until count) {
+                if (events.endDay[rows[i]] > weekLast) {
+                    active[activeCount++] = rows[i]
+                }
+            }
+            weekFirst += DAYS_PER_WEEK
+        }
+    }
+
+    companion object {
+        private const val DAYS_PER_WEEK = 7
+    }
+}
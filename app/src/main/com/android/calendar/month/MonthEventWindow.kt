@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.calendar.month
+
+import com.android.calendar.EventTable
+
+/**
+ * The events loaded for a range of Julian days in the month view, with the
+ * index of the events on each day. A window's events are never changed once
+ * built, so it can be built on a background thread and handed to the adapter
+ * as is. Its day index is given by the caller, so the indexes of windows no
+ * longer shown can be rebuilt for new ones.
+ *
+ * When the range moves, only the days that enter it have to be queried:
+ * [splice] keeps the rows that are still in range, drops the rest and merges
+ * in the new ones. Rows are kept in the month query's order (start day, start
+ * minute, title).
+ */
+class MonthEventWindow private constructor(
+    val firstJulianDay: Int,
+    val lastJulianDay: Int,
+    val events: EventTable,
+    val dayIndex: EventDayIndex
+) {
+    val numDays: Int
+        get() = lastJulianDay - firstJulianDay + 1
+
+    init {
+        dayIndex.build(events, firstJulianDay, numDays)
+    }
+
+    /**
+     * Returns the window for [first, last], given the events loaded for the
+     * days of the new range that are not in this one. The new window's day
+     * index is built into dayIndex, which must not be this window's.
+     */
+    @JvmOverloads fun splice(
+        first: Int,
+        last: Int,
+        loaded: EventTable,
+        dayIndex: EventDayIndex = EventDayIndex()
+    ): MonthEventWindow {
+        val current: EventTable = events
+        val result = EventTable(current.size + loaded.size)
+        var i = nextKept(current, 0, first, last)
+        // Events that also touch the current range were loaded with it.
+        var j = nextNew(loaded, 0, firstJulianDay, lastJulianDay)
+        while (i < current.size || j < loaded.size) {
+            if (j >= loaded.size || i < current.size && compareRows(current, i, loaded, j) <= 0) {
+                result.addRow(current, i)
+                i = nextKept(current, i + 1, first, last)
+            } else {
+                result.addRow(loaded, j)
+                j = nextNew(loaded, j + 1, firstJulianDay, lastJulianDay)
+            }
+        }
+        return MonthEventWindow(first, last, result, dayIndex)
+    }
+
+    companion object {
+        /**
+         * Returns the window for events loaded for all of [first, last], with
+         * its day index built into dayIndex.
+         */
+        @JvmStatic @JvmOverloads fun create(
+            first: Int,
+            last: Int,
+            loaded: EventTable,
+            dayIndex: EventDayIndex = EventDayIndex()
+        ): MonthEventWindow {
+            return MonthEventWindow(first, last, loaded, dayIndex)
+        }
+
+        private fun nextKept(events: EventTable, from: Int, first: Int, last: Int): Int {
+            var row = from
+            while (row < events.size &&
+                (events.startDay[row] > last || events.endDay[row] < first)) {
+                row++
+            }
+            return row
+        }
+
+        private fun nextNew(events: EventTable, from: Int, oldFirst: Int, oldLast: Int): Int {
+            var row = from
+            while (row < events.size &&
+                events.startDay[row] <= oldLast && events.endDay[row] >= oldFirst) {
+                row++
+            }
+            return row
+        }
+
+        private fun compareRows(a: EventTable, i: Int, b: EventTable, j: Int): Int {
+            if (a.startDay[i] != b.startDay[j]) {
+                return if (a.startDay[i] < b.startDay[j]) -1 else 1
+            }
+            if (a.startMinute[i] != b.startMinute[j]) {
+                return if (a.startMinute[i] < b.startMinute[j]) -1 else 1
+            }
+            val titleA: String = a.getTitle(i) ?: ""
+            val titleB: String = b.getTitle(j) ?: ""
+            return titleA.compareTo(titleB)
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.calendar.month
+
+import android.content.Context
+import android.content.CursorLoader
+import android.database.Cursor
+import android.database.CursorWrapper
+import android.net.Uri
+import com.android.calendar.Event
+import com.android.calendar.EventTable
+
+/**
+ * Loads the instances for the month view and, still on the loader's
+ * background thread, turns them into the [MonthEventWindow] the adapter
+ * shows. The cursor is delivered as a [Result] that carries the window, so
+ * the UI thread only has to swap it in.
+ */
+class MonthEventsLoader(
+    context: Context?,
+    projection: Array<String>?,
+    selection: String?,
+    sortOrder: String?
+) : CursorLoader(context, null, projection, selection, null, sortOrder) {
+
+    /**
+     * What to load: the instances in [queryFirstJulianDay, queryLastJulianDay]
+     * to show the days from firstJulianDay to lastJulianDay. If base is set,
+     * only the days entering the range are queried and the result is spliced
+     * into it.
+     */
+    class Request(
+        @JvmField val uri: Uri,
+        @JvmField val firstJulianDay: Int,
+        @JvmField val lastJulianDay: Int,
+        @JvmField val queryFirstJulianDay: Int,
+        @JvmField val queryLastJulianDay: Int,
+        @JvmField val base: MonthEventWindow?
+    ) {
+        val isEdge: Boolean
+            get() = base != null
+    }
+
+    class Result(
+        cursor: Cursor,
+        @JvmField val request: Request,
+        @JvmField val window: MonthEventWindow
+    ) : CursorWrapper(cursor)
+
+    @Volatile
+    private var mRequest: Request? = null
+
+    // The day indexes windows are built into. They take turns, so the one
+    // the adapter shows is never rebuilt under it.
+    private val mDayIndexes: Array<EventDayIndex> = arrayOf(EventDayIndex(), EventDayIndex())
+
+    @Volatile
+    private var mShownWindow: MonthEventWindow? = null
+
+    fun setRequest(request: Request) {
+        mRequest = request
+        setUri(request.uri)
+    }
+
+    /**
+     * Tells the loader the window the adapter now shows, so that later
+     * windows are built into the other day index. Must be called on the main
+     * thread as the window is handed to the adapter, where no load can have
+     * picked its index yet.
+     */
+    fun setShownWindow(window: MonthEventWindow?) {
+        mShownWindow = window
+    }
+
+    override fun loadInBackground(): Cursor? {
+        val request: Request? = mRequest
+        val cursor: Cursor? = super.loadInBackground()
+        if (cursor == null || request == null) {
+            return cursor
+        }
+        try {
+            val loaded = EventTable(cursor.getCount())
+            Event.buildEventsFromCursor(loaded, cursor, getContext(),
+                request.queryFirstJulianDay, request.queryLastJulianDay)
+            val dayIndex: EventDayIndex =
+                if (mShownWindow?.dayIndex === mDayIndexes[0]) mDayIndexes[1] else mDayIndexes[0]
+            val base: MonthEventWindow? = request.base
+            val window: MonthEventWindow = if (base != null) {
+                base.splice(request.firstJulianDay, request.lastJulianDay, loaded, dayIndex)
+            } else {
+                MonthEventWindow.create(request.firstJulianDay, request.lastJulianDay, loaded,
+                    dayIndex)
+            }
+            return Result(cursor, request, window)
+        } catch (e: RuntimeException) {
+            cursor.close()
+            throw e
+        }
+    }
+}
@@ -15,12 +15,14 @@
  */
 package com.android.calendar.month
 
-import com.android.calendar.Event
+import com.android.calendar.EventTable
 import com.android.calendar.R
 import com.android.calendar.Utils
 import android.animation.Animator
 import android.animation.AnimatorListenerAdapter
-import android.animation.ObjectAnimator
+import android.animation.Keyframe
+import android.animation.PropertyValuesHolder
+import android.animation.ValueAnimator
 import android.app.Service
 import android.content.Context
 import android.content.res.Configuration
@@ -30,6 +32,7 @@ import android.graphics.Color
 import android.graphics.Paint
 import android.graphics.Paint.Align
 import android.graphics.Paint.Style
+import android.graphics.RenderNode
 import android.graphics.Typeface
 import android.graphics.drawable.Drawable
 import android.provider.CalendarContract.Attendees
@@ -39,14 +42,13 @@ import android.text.format.DateFormat
 import android.text.format.DateUtils
 import android.text.format.Time
 import android.util.Log
+import android.util.LongSparseArray
+import android.util.SparseArray
 import android.view.MotionEvent
 import android.view.accessibility.AccessibilityEvent
 import android.view.accessibility.AccessibilityManager
-import java.util.ArrayList
 import java.util.Arrays
 import java.util.Formatter
-import java.util.HashMap
-import java.util.Iterator
 import java.util.List
 import java.util.Locale
 
@@ -60,9 +62,13 @@ class MonthWeekEventsView
     override protected var mHasToday = false
     protected var mTodayIndex = -1
     protected var mOrientation: Int = Configuration.ORIENTATION_LANDSCAPE
-    protected var mEvents: List<ArrayList<Event?>>? = null
-    protected var mUnsortedEvents: ArrayList<Event?>? = null
-    var mDna: HashMap<Int, Utils.DNAStrand>? = null
+    protected var mEvents: EventDayIndex? = null
+    protected var mEventsFirstDay = 0
+    protected var mEventTable: EventTable? = null
+    protected var mUnsortedEvents: EventTable? = null
+    var mDna: SparseArray<Utils.DNAStrand>? = null
+    private var mDnaCache: MonthDnaCache? = null
+    private var mDnaShared = false
 
     // This is for drawing the outlines around event chips and supports up to 10
     // events being drawn on each day. The code will expand this if necessary.
@@ -112,54 +118,10 @@ class MonthWeekEventsView
     protected var mTodayAnimateColor = 0
     private var mAnimateToday = false
     private var mAnimateTodayAlpha = 0
-    private var mTodayAnimator: ObjectAnimator? = null
-    private val mAnimatorListener: TodayAnimatorListener = TodayAnimatorListener()
 
-    internal inner class TodayAnimatorListener : AnimatorListenerAdapter() {
-        @Volatile
-        private var mAnimator: Animator? = null
-
-        @Volatile
-        private var mFadingIn = false
-        @Override
-        override fun onAnimationEnd(animation: Animator) {
-            synchronized(this) {
-                if (mAnimator !== animation) {
-                    animation.removeAllListeners()
-                    animation.cancel()
-                    return
-                }
-                if (mFadingIn) {
-                    if (mTodayAnimator != null) {
-                        mTodayAnimator?.removeAllListeners()
-                        mTodayAnimator?.cancel()
-                    }
-                    mTodayAnimator = ObjectAnimator.ofInt(this@MonthWeekEventsView,
-                            "animateTodayAlpha", 255, 0)
-                    mAnimator = mTodayAnimator
-                    mFadingIn = false
-                    mTodayAnimator?.addListener(this)
-                    mTodayAnimator?.setDuration(600)
-                    mTodayAnimator?.start()
-                } else {
-                    mAnimateToday = false
-                    mAnimateTodayAlpha = 0
-                    mAnimator?.removeAllListeners()
-                    mAnimator = null
-                    mTodayAnimator = null
-                    invalidate()
-                }
-            }
-        }
-
-        fun setAnimator(animation: Animator?) {
-            mAnimator = animation
-        }
-
-        fun setFadingIn(fadingIn: Boolean) {
-            mFadingIn = fadingIn
-        }
-    }
+    // Fades the highlight of today in and out, kept with the view and
+    // restarted when a recycled view is bound to today's week again.
+    private var mTodayAnimator: ValueAnimator? = null
 
     private var mDayXs: IntArray? = null
 
@@ -181,11 +143,56 @@ class MonthWeekEventsView
         }
     }
 
-    // Sets the list of events for this week. Takes a sorted list of arrays
-    // divided up by day for generating the large month version and the full
-    // arraylist sorted by start time to generate the dna version.
-    fun setEvents(sortedEvents: List<ArrayList<Event?>>?, unsortedEvents: ArrayList<Event?>?) {
-        setEvents(sortedEvents)
+    /**
+     * The text drawn for one event: its ellipsized title and, once it has
+     * been shown, its time range. It stays valid while the event and the
+     * space available for it don't change.
+     */
+    private class EventText {
+        var id: Long = 0
+        var begin: Long = 0
+        var end: Long = 0
+        var avail = 0f
+        var rawTitle: String? = null
+        var title: String = ""
+        var timeRange: String? = null
+    }
+
+    // Keyed by event id and start, cleared when the week or the way times
+    // are formatted changes.
+    private val mEventTexts: LongSparseArray<EventText> = LongSparseArray<EventText>()
+    private var mEventTextsFirstJulianDay = -1
+    private var mEventTextsTimeZone: String? = null
+    private var mEventTexts24Hour = false
+    private var mEventTextsLocale: Locale? = null
+
+    // The time zone and clock format to show event times in, set by the
+    // adapter when it refreshes rather than read on every draw.
+    private var mTimeFormatZone: String? = null
+    private var mTimeFormat24Hour = false
+
+    // Where the events of each day go, worked out once per set of events and
+    // week params: whether times are shown, how many chips fit and the y of
+    // each chip, indexed like the week's slice of the day index rows.
+    private var mEventPlanValid = false
+    private var mEventPlanShowTimes: BooleanArray = BooleanArray(0)
+    private var mEventPlanCount: IntArray = IntArray(0)
+    private var mEventPlanY: IntArray = IntArray(0)
+    private var mEventsGeneration = 0
+
+    // Sets the list of events for this week. Takes the index of the event table
+    // rows on each day, starting at this week's first day in it, for
+    // generating the large month version and the full table sorted by start
+    // time to generate the dna version.
+    fun setEvents(
+        sortedEvents: EventDayIndex?,
+        firstDay: Int,
+        unsortedEvents: EventTable?,
+        dnaCache: MonthDnaCache? = null
+    ) {
+        mEventTable = unsortedEvents
+        mDnaCache = dnaCache
+        setEvents(sortedEvents, firstDay)
         // The MIN_WEEK_WIDTH is a hack to prevent the view from trying to
         // generate dna bits before its width has been fixed.
         createDna(unsortedEvents)
@@ -196,7 +203,7 @@ class MonthWeekEventsView
      * isn't in a state that will create a valid set of dna yet (such as the
      * views width not being set correctly yet).
      */
-    fun createDna(unsortedEvents: ArrayList<Event?>?) {
+    fun createDna(unsortedEvents: EventTable?) {
         if (unsortedEvents == null || mWidth <= MIN_WEEK_WIDTH || getContext() == null) {
             // Stash the list of events for use when this view is ready, or
             // just clear it if a null set has been passed to this view
@@ -209,7 +216,7 @@ class MonthWeekEventsView
         }
         // Create the drawing coordinates for dna
         if (!mShowDetailsInMonth) {
-            val numDays: Int = mEvents!!.size
+            val numDays: Int = mNumDays
             var effectiveWidth: Int = mWidth - mPadding * 2
             if (mShowWeekNum) {
                 effectiveWidth -= SPACING_WEEK_NUMBER
@@ -222,20 +229,41 @@ class MonthWeekEventsView
             }
             val top = DAY_SEPARATOR_INNER_WIDTH + DNA_MARGIN + DNA_ALL_DAY_HEIGHT + 1
             val bottom: Int = mHeight - DNA_MARGIN
-            mDna = Utils.createDNAStrands(mFirstJulianDay, unsortedEvents, top, bottom,
-                    DNA_MIN_SEGMENT_HEIGHT, mDayXs, getContext())
+            val dnaCache: MonthDnaCache? = mDnaCache
+            if (dnaCache != null) {
+                mDna = dnaCache.get(mFirstJulianDay, mDayXs as IntArray, top, bottom,
+                        DNA_MIN_SEGMENT_HEIGHT, getContext())
+                mDnaShared = true
+            } else {
+                // Strands of our own are replaced, so their point arrays can be reused
+                mDna = Utils.createDNAStrands(mFirstJulianDay, unsortedEvents, top, bottom,
+                        DNA_MIN_SEGMENT_HEIGHT, mDayXs, getContext(),
+                        if (mDnaShared) null else mDna)
+                mDnaShared = false
+            }
         }
     }
 
-    fun setEvents(sortedEvents: List<ArrayList<Event?>>?) {
+    /**
+     * Sets the time zone and clock format event times are shown in.
+     */
+    fun setTimeFormat(timeZone: String?, is24Hour: Boolean) {
+        mTimeFormatZone = timeZone
+        mTimeFormat24Hour = is24Hour
+    }
+
+    fun setEvents(sortedEvents: EventDayIndex?, firstDay: Int) {
         mEvents = sortedEvents
+        mEventsFirstDay = firstDay
+        mEventsGeneration = sortedEvents?.generation ?: 0
+        mEventPlanValid = false
         if (sortedEvents == null) {
             return
         }
-        if (sortedEvents.size !== mNumDays) {
+        if (firstDay < 0 || firstDay + mNumDays > sortedEvents.numDays) {
             if (Log.isLoggable(TAG, Log.ERROR)) {
-                Log.wtf(TAG, ("Events size must be same as days displayed: size="
-                        + sortedEvents.size) + " days=" + mNumDays)
+                Log.wtf(TAG, ("Events must cover the days displayed: first=" + firstDay +
+                        " size=" + sortedEvents.numDays) + " days=" + mNumDays)
             }
             mEvents = null
             return
@@ -404,30 +432,64 @@ class MonthWeekEventsView
     }
 
     @Override
-    override fun setWeekParams(params: HashMap<String?, Int?>, tz: String) {
-        super.setWeekParams(params, tz)
-        if (params.containsKey(VIEW_PARAMS_ORIENTATION)) {
-            mOrientation = params.get(VIEW_PARAMS_ORIENTATION) ?:
-                    Configuration.ORIENTATION_LANDSCAPE
+    override fun setWeekParams(params: WeekParams, tz: String): Boolean {
+        val changed: Boolean = super.setWeekParams(params, tz)
+        if (changed) {
+            mEventPlanValid = false
+            mOrientation = params.orientation
+            updateToday(tz)
+            mNumCells = mNumDays + 1
+        }
+        if (params.animateToday && mHasToday) {
+            startTodayAnimation()
+        } else if (changed) {
+            // A recycled view must not keep animating the week it showed before
+            cancelTodayAnimation()
         }
-        updateToday(tz)
-        mNumCells = mNumDays + 1
-        if (params.containsKey(VIEW_PARAMS_ANIMATE_TODAY) && mHasToday) {
-            synchronized(mAnimatorListener) {
-                if (mTodayAnimator != null) {
-                    mTodayAnimator?.removeAllListeners()
-                    mTodayAnimator?.cancel()
+        return changed
+    }
+
+    private fun startTodayAnimation() {
+        var animator: ValueAnimator? = mTodayAnimator
+        if (animator == null) {
+            animator = ValueAnimator()
+            animator.setDuration(TODAY_FADE_IN_DURATION + TODAY_FADE_OUT_DURATION)
+            animator.addUpdateListener(object : ValueAnimator.AnimatorUpdateListener {
+                override fun onAnimationUpdate(animation: ValueAnimator) {
+                    setAnimateTodayAlpha(animation.getAnimatedValue() as Int)
                 }
-                mTodayAnimator = ObjectAnimator.ofInt(this, "animateTodayAlpha",
-                        Math.max(mAnimateTodayAlpha, 80), 255)
-                mTodayAnimator?.setDuration(150)
-                mAnimatorListener.setAnimator(mTodayAnimator)
-                mAnimatorListener.setFadingIn(true)
-                mTodayAnimator?.addListener(mAnimatorListener)
-                mAnimateToday = true
-                mTodayAnimator?.start()
-            }
+            })
+            animator.addListener(object : AnimatorListenerAdapter() {
+                override fun onAnimationEnd(animation: Animator) {
+                    mAnimateToday = false
+                    mAnimateTodayAlpha = 0
+                    invalidate()
+                }
+            })
+            mTodayAnimator = animator
         }
+        animator.cancel()
+        // Fade in from where a previous animation left off, then fade out
+        val fadedIn: Float = TODAY_FADE_IN_DURATION.toFloat() /
+                (TODAY_FADE_IN_DURATION + TODAY_FADE_OUT_DURATION)
+        animator.setValues(PropertyValuesHolder.ofKeyframe("animateTodayAlpha",
+                Keyframe.ofInt(0f, Math.max(mAnimateTodayAlpha, 80)),
+                Keyframe.ofInt(fadedIn, 255),
+                Keyframe.ofInt(1f, 0)))
+        mAnimateToday = true
+        animator.start()
+    }
+
+    private fun cancelTodayAnimation() {
+        if (mAnimateToday) {
+            mTodayAnimator?.cancel()
+        }
+    }
+
+    @Override
+    protected override fun onDetachedFromWindow() {
+        cancelTodayAnimation()
+        super.onDetachedFromWindow()
     }
 
     /**
@@ -455,6 +517,29 @@ class MonthWeekEventsView
 
     @Override
     protected override fun onDraw(canvas: Canvas) {
+        if (mAnimateToday || !canvas.isHardwareAccelerated()) {
+            drawWeek(canvas)
+        } else {
+            // Replay the row as it was last drawn with the same content.
+            val key: WeekRenderCache.WeekKey = getRenderKey()
+            var node: RenderNode? = mRenderCache.get(key)
+            if (node == null) {
+                node = RenderNode(TAG)
+                node.setPosition(0, 0, mWidth, mHeight)
+                val recordingCanvas: Canvas = node.beginRecording(mWidth, mHeight)
+                try {
+                    drawWeek(recordingCanvas)
+                } finally {
+                    node.endRecording()
+                }
+                mRenderCache.put(key, node)
+            }
+            canvas.drawRenderNode(node)
+        }
+        drawClick(canvas)
+    }
+
+    private fun drawWeek(canvas: Canvas) {
         drawBackground(canvas)
         drawWeekNums(canvas)
         drawDaySeparators(canvas)
@@ -469,7 +554,18 @@ class MonthWeekEventsView
             }
             drawDNA(canvas)
         }
-        drawClick(canvas)
+    }
+
+    private fun getRenderKey(): WeekRenderCache.WeekKey {
+        var focusDays = 0
+        for (i in 0 until mFocusDay.size) {
+            if (mFocusDay[i]) {
+                focusDays = focusDays or (1 shl i)
+            }
+        }
+        return WeekRenderCache.WeekKey(mFirstJulianDay, mNumDays, mShowWeekNum, focusDays,
+                if (mHasToday) mTodayIndex else -1, mWidth, mHeight, mOrientation,
+                mShowDetailsInMonth, mEventsGeneration)
     }
 
     protected fun drawToday(canvas: Canvas) {
@@ -628,34 +724,72 @@ class MonthWeekEventsView
     }
 
     protected fun drawEvents(canvas: Canvas) {
-        if (mEvents == null) {
+        if (mEvents == null || mEventTable == null) {
             return
         }
-        var day = -1
-        for (eventDay in mEvents!!) {
-            day++
-            if (eventDay == null || eventDay.size === 0) {
+        val events: EventTable = mEventTable as EventTable
+        val dayIndex: EventDayIndex = mEvents as EventDayIndex
+        val rows: IntArray = dayIndex.rows
+        validateEventTexts()
+        if (!mEventPlanValid) {
+            buildEventPlan(events, dayIndex)
+        }
+        val first: Int = dayIndex.getStart(mEventsFirstDay)
+        for (day in 0 until mNumDays) {
+            val start: Int = dayIndex.getStart(mEventsFirstDay + day)
+            val end: Int = dayIndex.getEnd(mEventsFirstDay + day)
+            if (start == end) {
                 continue
             }
-            var ySquare: Int
             val xSquare = computeDayLeftPosition(day) + SIDE_PADDING_MONTH_NUMBER + 1
             var rightEdge = computeDayLeftPosition(day + 1)
             if (mOrientation == Configuration.ORIENTATION_PORTRAIT) {
-                ySquare = EVENT_Y_OFFSET_PORTRAIT + mMonthNumHeight + TOP_PADDING_MONTH_NUMBER
                 rightEdge -= SIDE_PADDING_MONTH_NUMBER + 1
             } else {
-                ySquare = EVENT_Y_OFFSET_LANDSCAPE
                 rightEdge -= EVENT_X_OFFSET_LANDSCAPE
             }
+            val showTimes: Boolean = mEventPlanShowTimes[day]
+            val eventCount: Int = mEventPlanCount[day]
+            for (i in start until start + eventCount) {
+                drawEvent(canvas, events, rows[i], xSquare, mEventPlanY[i - first], rightEdge,
+                        showTimes)
+            }
+            val remaining: Int = end - start - eventCount
+            if (remaining > 0) {
+                drawMoreEvents(canvas, remaining, xSquare)
+            }
+        }
+    }
+
+    /**
+     * Works out which events fit on each day and where they go, so that
+     * drawing the week only has to replay the result.
+     */
+    private fun buildEventPlan(events: EventTable, dayIndex: EventDayIndex) {
+        val rows: IntArray = dayIndex.rows
+        val first: Int = dayIndex.getStart(mEventsFirstDay)
+        val last: Int = dayIndex.getEnd(mEventsFirstDay + mNumDays - 1)
+        if (mEventPlanCount.size < mNumDays) {
+            mEventPlanShowTimes = BooleanArray(mNumDays)
+            mEventPlanCount = IntArray(mNumDays)
+        }
+        if (mEventPlanY.size < last - first) {
+            mEventPlanY = IntArray(last - first)
+        }
+        val yStart: Int = if (mOrientation == Configuration.ORIENTATION_PORTRAIT) {
+            EVENT_Y_OFFSET_PORTRAIT + mMonthNumHeight + TOP_PADDING_MONTH_NUMBER
+        } else {
+            EVENT_Y_OFFSET_LANDSCAPE
+        }
+        for (day in 0 until mNumDays) {
+            val start: Int = dayIndex.getStart(mEventsFirstDay + day)
+            val end: Int = dayIndex.getEnd(mEventsFirstDay + day)
 
             // Determine if everything will fit when time ranges are shown.
             var showTimes = true
-            var iter: Iterator<Event> = eventDay.iterator() as Iterator<Event>
-            var yTest = ySquare
-            while (iter.hasNext()) {
-                val event: Event = iter.next()
-                val newY = drawEvent(canvas, event, xSquare, yTest, rightEdge, iter.hasNext(),
-                        showTimes,  /*doDraw*/false)
+            var yTest = yStart
+            for (i in start until end) {
+                val newY = fitEvent(events.isAllDay(rows[i]), yTest, i + 1 < end, showTimes)
                 if (newY == yTest) {
                     showTimes = false
                     break
@@ -663,22 +797,85 @@ class MonthWeekEventsView
                 yTest = newY
             }
             var eventCount = 0
-            iter = eventDay.iterator() as Iterator<Event>
-            while (iter.hasNext()) {
-                val event: Event = iter.next()
-                val newY = drawEvent(canvas, event, xSquare, ySquare, rightEdge, iter.hasNext(),
-                        showTimes,  /*doDraw*/true)
+            var ySquare = yStart
+            for (i in start until end) {
+                val newY = fitEvent(events.isAllDay(rows[i]), ySquare, i + 1 < end, showTimes)
                 if (newY == ySquare) {
                     break
                 }
+                mEventPlanY[i - first] = ySquare
                 eventCount++
                 ySquare = newY
             }
-            val remaining: Int = eventDay.size- eventCount
-            if (remaining > 0) {
-                drawMoreEvents(canvas, remaining, xSquare)
-            }
+            mEventPlanShowTimes[day] = showTimes
+            mEventPlanCount[day] = eventCount
+        }
+        mEventPlanValid = true
+    }
+
+    /**
+     * Drops the cached event texts if the week or the time zone, clock
+     * format or locale they were formatted with changed.
+     */
+    private fun validateEventTexts() {
+        val timeZone: String? = mTimeFormatZone
+        val is24Hour: Boolean = mTimeFormat24Hour
+        val locale: Locale = Locale.getDefault()
+        if (locale != mEventTextsLocale) {
+            mFormatter = Formatter(mStringBuilder, locale)
+        } else if (mEventTextsFirstJulianDay == mFirstJulianDay &&
+                TextUtils.equals(timeZone, mEventTextsTimeZone) &&
+                is24Hour == mEventTexts24Hour) {
+            return
+        }
+        mEventTexts.clear()
+        mEventTextsFirstJulianDay = mFirstJulianDay
+        mEventTextsTimeZone = timeZone
+        mEventTexts24Hour = is24Hour
+        mEventTextsLocale = locale
+    }
+
+    /**
+     * Returns the text for an event, ellipsizing its title again only if the
+     * event or the space for it changed since it was last drawn.
+     */
+    private fun getEventText(events: EventTable, row: Int, avail: Float): EventText {
+        val id: Long = events.id[row]
+        val begin: Long = events.begin[row]
+        val title: String? = events.getTitle(row)
+        val key: Long = id * 31 + begin
+        var text: EventText? = mEventTexts.get(key)
+        if (text == null) {
+            text = EventText()
+            mEventTexts.put(key, text)
+        } else if (text.id == id && text.begin == begin && text.end == events.end[row] &&
+                text.avail == avail && TextUtils.equals(text.rawTitle, title)) {
+            return text
+        }
+        text.id = id
+        text.begin = begin
+        text.end = events.end[row]
+        text.avail = avail
+        text.rawTitle = title
+        text.title = TextUtils.ellipsize(title, mEventPaint, avail,
+                TextUtils.TruncateAt.END).toString()
+        text.timeRange = null
+        return text
+    }
+
+    private fun getEventTimeRange(events: EventTable, row: Int, text: EventText): String {
+        var timeRange: String? = text.timeRange
+        if (timeRange == null) {
+            mStringBuilder.setLength(0)
+            val range: String = DateUtils.formatDateRange(getContext(), mFormatter,
+                    events.begin[row], events.end[row],
+                    DateUtils.FORMAT_SHOW_TIME or DateUtils.FORMAT_ABBREV_ALL,
+                    mEventTextsTimeZone).toString()
+            timeRange = TextUtils.ellipsize(range, mEventExtrasPaint, text.avail,
+                    TextUtils.TruncateAt.END).toString()
+            text.timeRange = timeRange
         }
+        return timeRange
     }
 
     protected fun addChipOutline(lines: FloatRef, count: Int, x: Int, y: Int): Int {
@@ -708,25 +905,19 @@ class MonthWeekEventsView
     }
 
     /**
-     * Attempts to draw the given event. Returns the y for the next event or the
-     * original y if the event will not fit. An event is considered to not fit
-     * if the event and its extras won't fit or if there are more events and the
-     * more events line would not fit after drawing this event.
+     * Works out whether the given event fits at y. An event is considered to
+     * not fit if the event and its extras won't fit or if there are more
+     * events and the more events line would not fit after this event.
      *
-     * @param canvas the canvas to draw on
-     * @param event the event to draw
-     * @param x the top left corner for this event's color chip
+     * @param allDay whether the event is drawn in an all-day box
      * @param y the top left corner for this event's color chip
-     * @param rightEdge the rightmost point we're allowed to draw on (exclusive)
      * @param moreEvents indicates whether additional events will follow this one
      * @param showTimes if set, a second line with a time range will be displayed for non-all-day
      * events
-     * @param doDraw if set, do the actual drawing; otherwise this just computes the height
-     * and returns
      * @return the y for the next event or the original y if it won't fit
      */
-    protected fun drawEvent(canvas: Canvas, event: Event, x: Int, y: Int, rightEdge: Int,
-                            moreEvents: Boolean, showTimes: Boolean, doDraw: Boolean): Int {
+    protected fun fitEvent(allDay: Boolean, y: Int, moreEvents: Boolean,
+                           showTimes: Boolean): Int {
         /*
          * Vertical layout:
          *   (top of box)
@@ -743,10 +934,7 @@ class MonthWeekEventsView
          * f. EVENT_BOTTOM_PADDING (overlaps EVENT_LINE_PADDING)
          *   (bottom of box)
          */
-        var y = y
         val BORDER_SPACE = EVENT_SQUARE_BORDER + 1 // want a 1-pixel gap inside border
-        val STROKE_WIDTH_ADJ = EVENT_SQUARE_BORDER / 2 // adjust bounds for stroke width
-        val allDay: Boolean = event.allDay
         var eventRequiredSpace = mEventHeight
         if (allDay) {
             // Add a few pixels for the box we draw around all-day events.
@@ -768,11 +956,31 @@ class MonthWeekEventsView
         if (y + eventRequiredSpace + reservedSpace > mHeight) {
             // Not enough space, return original y
             return y
-        } else if (!doDraw) {
-            return y + eventRequiredSpace
         }
-        val isDeclined = event.selfAttendeeStatus === Attendees.ATTENDEE_STATUS_DECLINED
-        var color: Int = event.color
+        return y + eventRequiredSpace
+    }
+
+    /**
+     * Draws the given event at a position worked out by [fitEvent].
+     *
+     * @param canvas the canvas to draw on
+     * @param events the table holding the event to draw
+     * @param row the row of the event to draw
+     * @param x the top left corner for this event's color chip
+     * @param y the top left corner for this event's color chip
+     * @param rightEdge the rightmost point we're allowed to draw on (exclusive)
+     * @param showTimes if set, a second line with a time range will be displayed for non-all-day
+     * events
+     */
+    protected fun drawEvent(canvas: Canvas, events: EventTable, row: Int, x: Int, y: Int,
+                            rightEdge: Int, showTimes: Boolean) {
+        var y = y
+        val BORDER_SPACE = EVENT_SQUARE_BORDER + 1 // want a 1-pixel gap inside border
+        val STROKE_WIDTH_ADJ = EVENT_SQUARE_BORDER / 2 // adjust bounds for stroke width
+        val allDay: Boolean = events.isAllDay(row)
+        val selfAttendeeStatus: Int = events.selfAttendeeStatus[row]
+        val isDeclined = selfAttendeeStatus == Attendees.ATTENDEE_STATUS_DECLINED
+        var color: Int = events.color[row]
         if (isDeclined) {
             color = Utils.getDeclinedColorFromColor(color)
         }
@@ -801,7 +1009,7 @@ class MonthWeekEventsView
         }
         var boxStyle: Style = Style.STROKE
         var solidBackground = false
-        if (event.selfAttendeeStatus !== Attendees.ATTENDEE_STATUS_INVITED) {
+        if (selfAttendeeStatus != Attendees.ATTENDEE_STATUS_INVITED) {
             boxStyle = Style.FILL_AND_STROKE
             if (allDay) {
                 solidBackground = true
@@ -811,8 +1019,7 @@ class MonthWeekEventsView
         mEventSquarePaint.setColor(color)
         canvas.drawRect(r, mEventSquarePaint)
         val avail = (textRightEdge - textX).toFloat()
-        var text: CharSequence = TextUtils.ellipsize(
-                event.title, mEventPaint, avail, TextUtils.TruncateAt.END)
+        val text: EventText = getEventText(events, row, avail)
         val textPaint: TextPaint?
         textPaint = if (solidBackground) {
             // Text color needs to contrast with solid background.
@@ -828,7 +1035,7 @@ class MonthWeekEventsView
             // Use generic event text color.
             mEventPaint
         }
-        canvas.drawText(text.toString(), textX.toFloat(), textY.toFloat(), textPaint as Paint)
+        canvas.drawText(text.title, textX.toFloat(), textY.toFloat(), textPaint as Paint)
         y += mEventHeight
         if (allDay) {
             y += BORDER_SPACE * 2
@@ -836,17 +1043,10 @@ class MonthWeekEventsView
         if (showTimes && !allDay) {
             // show start/end time, e.g. "1pm - 2pm"
             textY = y + mExtrasAscentHeight
-            mStringBuilder.setLength(0)
-            text = DateUtils.formatDateRange(getContext(), mFormatter, event.startMillis,
-                    event.endMillis, DateUtils.FORMAT_SHOW_TIME or DateUtils.FORMAT_ABBREV_ALL,
-                    Utils.getTimeZone(getContext(), null)).toString()
-            text = TextUtils.ellipsize(text, mEventExtrasPaint, avail, TextUtils.TruncateAt.END)
-            canvas.drawText(text.toString(), textX.toFloat(), textY.toFloat(),
+            canvas.drawText(getEventTimeRange(events, row, text), textX.toFloat(),
+                    textY.toFloat(),
                     if (isDeclined) mEventDeclinedExtrasPaint else mEventExtrasPaint)
-            y += mExtrasHeight
         }
-        y += EVENT_LINE_PADDING
-        return y
     }
 
     protected fun drawMoreEvents(canvas: Canvas, remainingEvents: Int, x: Int) {
@@ -870,19 +1070,23 @@ class MonthWeekEventsView
     protected fun drawDNA(canvas: Canvas) {
         // Draw event and conflict times
         if (mDna != null) {
-            for (strand in mDna!!.values) {
+            val dna: SparseArray<Utils.DNAStrand> = mDna as SparseArray<Utils.DNAStrand>
+            for (i in 0 until dna.size()) {
+                val strand: Utils.DNAStrand = dna.valueAt(i)
                 if (strand.color === CONFLICT_COLOR || strand.points == null ||
-                        (strand.points as FloatArray).size === 0) {
+                        strand.position == 0) {
                     continue
                 }
                 mDNATimePaint.setColor(strand.color)
-                canvas.drawLines(strand.points as FloatArray, mDNATimePaint as Paint)
+                canvas.drawLines(strand.points as FloatArray, 0, strand.position,
+                        mDNATimePaint as Paint)
             }
             // Draw black last to make sure it's on top
-            val strand: Utils.DNAStrand? = mDna?.get(CONFLICT_COLOR)
-            if (strand != null && strand.points != null && strand.points?.size !== 0) {
+            val strand: Utils.DNAStrand? = dna.get(CONFLICT_COLOR)
+            if (strand != null && strand.points != null && strand.position != 0) {
                 mDNATimePaint.setColor(strand.color)
-                canvas.drawLines(strand.points as FloatArray, mDNATimePaint as Paint)
+                canvas.drawLines(strand.points as FloatArray, 0, strand.position,
+                        mDNATimePaint as Paint)
             }
             if (mDayXs == null) {
                 return
@@ -971,16 +1175,19 @@ class MonthWeekEventsView
                 val accessEvent: AccessibilityEvent = AccessibilityEvent
                         .obtain(AccessibilityEvent.TYPE_NOTIFICATION_STATE_CHANGED)
                 accessEvent.getText().add(date)
-                if (mShowDetailsInMonth && mEvents != null) {
+                if (mShowDetailsInMonth && mEvents != null && mEventTable != null) {
                     val dayStart: Int = SPACING_WEEK_NUMBER + mPadding
                     val dayPosition = ((event.getX() - dayStart) * mNumDays / (mWidth
                             - dayStart - mPadding)).toInt()
-                    val events: ArrayList<Event?> = mEvents!![dayPosition]
+                    val events: EventTable = mEventTable as EventTable
                     val text: List<CharSequence> = accessEvent.getText() as List<CharSequence>
-                    for (e in events) {
-                        text.add(e!!.titleAndLocation.toString() + ". ")
+                    val dayIndex: EventDayIndex = mEvents as EventDayIndex
+                    val day: Int = mEventsFirstDay + dayPosition
+                    for (i in dayIndex.getStart(day) until dayIndex.getEnd(day)) {
+                        val row: Int = dayIndex.rows[i]
+                        text.add(events.getTitleAndLocation(row) + ". ")
                         var flags: Int = DateUtils.FORMAT_SHOW_DATE or DateUtils.FORMAT_SHOW_YEAR
-                        if (!e.allDay) {
+                        if (!events.isAllDay(row)) {
                             flags = flags or DateUtils.FORMAT_SHOW_TIME
                             if (DateFormat.is24HourFormat(context)) {
                                 flags = flags or DateUtils.FORMAT_24HOUR
@@ -988,8 +1195,8 @@ class MonthWeekEventsView
                         } else {
                             flags = flags or DateUtils.FORMAT_UTC
                         }
-                        text.add(Utils.formatDateRange(context, e.startMillis, e.endMillis,
-                                flags).toString() + ". ")
+                        text.add(Utils.formatDateRange(context, events.begin[row],
+                                events.end[row], flags).toString() + ". ")
                     }
                 }
                 sendAccessibilityEventUnchecked(accessEvent)
@@ -1012,8 +1219,6 @@ class MonthWeekEventsView
     companion object {
         private const val TAG = "MonthView"
         private const val DEBUG_LAYOUT = false
-        const val VIEW_PARAMS_ORIENTATION = "orientation"
-        const val VIEW_PARAMS_ANIMATE_TODAY = "animate_today"
 
         /* NOTE: these are not constants, and may be multiplied by a scale factor */
         private var TEXT_SIZE_MONTH_NUMBER = 32
@@ -1054,8 +1259,21 @@ class MonthWeekEventsView
         private var mShowDetailsInMonth = false
         protected var mStringBuilder: StringBuilder = StringBuilder(50)
 
-        // TODO recreate formatter when locale changes
         protected var mFormatter: Formatter = Formatter(mStringBuilder, Locale.getDefault())
         private const val mClickedAlpha = 128
+        private const val TODAY_FADE_IN_DURATION: Long = 150
+        private const val TODAY_FADE_OUT_DURATION: Long = 600
+
+        // Enough for a few screens of week rows with events.
+        private const val RENDER_CACHE_BYTES = 4 * 1024 * 1024
+        private val mRenderCache: WeekRenderCache = WeekRenderCache(RENDER_CACHE_BYTES)
+
+        /**
+         * Drops the recorded week rows, for when something they don't key on
+         * such as the theme or time formatting may have changed.
+         */
+        @JvmStatic fun clearRenderCache() {
+            mRenderCache.clear()
+        }
     }
 }
\ No newline at end of file
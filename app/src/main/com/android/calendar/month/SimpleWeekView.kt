@@ -33,7 +33,6 @@ import android.view.View
 import android.view.accessibility.AccessibilityEvent
 import android.view.accessibility.AccessibilityManager
 import java.security.InvalidParameterException
-import java.util.HashMap
 
 /**
  *
@@ -121,52 +120,54 @@ open class SimpleWeekView(context: Context) : View(context) {
     @JvmField protected var mTodayOutlineColor: Int
     @JvmField protected var mWeekNumColor: Int
 
+    // The params this week was last set up with
+    private val mWeekParams: WeekParams = WeekParams()
+
+    // The Julian day of today when this week was last set up
+    private var mTodayJulianDay = -1
+    private val mNow: Time = Time()
+
     /**
-     * Sets all the parameters for displaying this week. The only required
-     * parameter is the week number. Other parameters have a default value and
-     * will only update if a new value is included, except for focus month,
-     * which will always default to no focus month if no value is passed in. See
-     * [.VIEW_PARAMS_HEIGHT] for more info on parameters.
+     * Sets all the parameters for displaying this week, see [WeekParams]. The
+     * params are copied. If they lay out the week already shown and today
+     * hasn't changed since, only the selected day is updated.
      *
-     * @param params A map of the new parameters, see
-     * [.VIEW_PARAMS_HEIGHT]
+     * @param params The new parameters, week is required
      * @param tz The time zone this view should reference times in
+     * @return true if the week was set up again, false if only the selection
+     * changed
      */
-    open fun setWeekParams(params: HashMap<String?, Int?>, tz: String) {
-        if (!params.containsKey(VIEW_PARAMS_WEEK)) {
+    open fun setWeekParams(params: WeekParams, tz: String): Boolean {
+        if (params.week == -1) {
             throw InvalidParameterException("You must specify the week number for this view")
         }
-        setTag(params)
-        mTimeZone = tz
-        // We keep the current value for any params not present
-        if (params.containsKey(VIEW_PARAMS_HEIGHT)) {
-            mHeight = (params.get(VIEW_PARAMS_HEIGHT))!!.toInt()
-            if (mHeight < MIN_HEIGHT) {
-                mHeight = MIN_HEIGHT
-            }
+        val todayJulianDay: Int = getTodayJulianDay(tz)
+        if (params.isSameWeek(mWeekParams) && tz == mTimeZone &&
+                todayJulianDay == mTodayJulianDay) {
+            mWeekParams.set(params)
+            mSelectedDay = params.selectedDay
+            mHasSelectedDay = mSelectedDay != -1
+            updateSelectionPositions()
+            return false
         }
-        if (params.containsKey(VIEW_PARAMS_SELECTED_DAY)) {
-            mSelectedDay = (params.get(VIEW_PARAMS_SELECTED_DAY))!!.toInt()
+        mWeekParams.set(params)
+        mTodayJulianDay = todayJulianDay
+        mTimeZone = tz
+        mHeight = params.height
+        if (mHeight < MIN_HEIGHT) {
+            mHeight = MIN_HEIGHT
         }
+        mSelectedDay = params.selectedDay
         mHasSelectedDay = mSelectedDay != -1
-        if (params.containsKey(VIEW_PARAMS_NUM_DAYS)) {
-            mNumDays = (params.get(VIEW_PARAMS_NUM_DAYS))!!.toInt()
-        }
-        if (params.containsKey(VIEW_PARAMS_SHOW_WK_NUM)) {
-            mShowWeekNum =
-                    if (params.get(VIEW_PARAMS_SHOW_WK_NUM) != 0) {
-                        true
-                    } else {
-                        false
-                    }
-        }
+        mNumDays = params.numDays
+        mShowWeekNum = params.showWeekNum
         mNumCells = if (mShowWeekNum) mNumDays + 1 else mNumDays
 
         // Allocate space for caching the day numbers and focus values
         mDayNumbers = arrayOfNulls(mNumCells)
         mFocusDay = BooleanArray(mNumCells)
         mOddMonth = BooleanArray(mNumCells)
-        mWeek = (params.get(VIEW_PARAMS_WEEK))!!.toInt()
+        mWeek = params.week
         val julianMonday: Int = Utils.getJulianMondayFromWeeksSinceEpoch(mWeek)
         val time = Time(tz)
         time.setJulianDay(julianMonday)
@@ -177,9 +178,7 @@ open class SimpleWeekView(context: Context) : View(context) {
             mDayNumbers!![0] = Integer.toString(time.getWeekNumber())
             i++
         }
-        if (params.containsKey(VIEW_PARAMS_WEEK_START)) {
-            mWeekStart = (params.get(VIEW_PARAMS_WEEK_START))!!.toInt()
-        }
+        mWeekStart = params.weekStart
 
         // Now adjust our starting day based on the start day of the week
         // If the week is set to start on a Saturday the first week will be
@@ -195,14 +194,10 @@ open class SimpleWeekView(context: Context) : View(context) {
         mFirstJulianDay = Time.getJulianDay(time.toMillis(true), time.gmtoff)
         firstMonth = time.month
 
-        // Figure out what day today is
-        val today = Time(tz)
-        today.setToNow()
+        // mNow was set to today by getTodayJulianDay
         mHasToday = false
         mToday = -1
-        val focusMonth = if (params.containsKey(VIEW_PARAMS_FOCUS_MONTH)) params.get(
-                VIEW_PARAMS_FOCUS_MONTH
-        ) else DEFAULT_FOCUS_MONTH
+        val focusMonth: Int = params.focusMonth
         while (i < mNumCells) {
             if (time.monthDay === 1) {
                 firstMonth = time.month
@@ -213,7 +208,7 @@ open class SimpleWeekView(context: Context) : View(context) {
             } else {
                 mFocusDay[i] = false
             }
-            if (time.year === today.year && time.yearDay === today.yearDay) {
+            if (time.year === mNow.year && time.yearDay === mNow.yearDay) {
                 mHasToday = true
                 mToday = i
             }
@@ -229,6 +224,13 @@ open class SimpleWeekView(context: Context) : View(context) {
         }
         lastMonth = time.month
         updateSelectionPositions()
+        return true
+    }
+
+    private fun getTodayJulianDay(tz: String): Int {
+        mNow.timezone = tz
+        mNow.setToNow()
+        return Time.getJulianDay(mNow.toMillis(true), mNow.gmtoff)
     }
 
     /**
@@ -471,50 +473,6 @@ open class SimpleWeekView(context: Context) : View(context) {
 
     companion object {
         private const val TAG = "MonthView"
-        /**
-         * These params can be passed into the view to control how it appears.
-         * [.VIEW_PARAMS_WEEK] is the only required field, though the default
-         * values are unlikely to fit most layouts correctly.
-         */
-        /**
-         * This sets the height of this week in pixels
-         */
-        const val VIEW_PARAMS_HEIGHT = "height"
-
-        /**
-         * This specifies the position (or weeks since the epoch) of this week,
-         * calculated using [Utils.getWeeksSinceEpochFromJulianDay]
-         */
-        const val VIEW_PARAMS_WEEK = "week"
-
-        /**
-         * This sets one of the days in this view as selected [Time.SUNDAY]
-         * through [Time.SATURDAY].
-         */
-        const val VIEW_PARAMS_SELECTED_DAY = "selected_day"
-
-        /**
-         * Which day the week should start on. [Time.SUNDAY] through
-         * [Time.SATURDAY].
-         */
-        const val VIEW_PARAMS_WEEK_START = "week_start"
-
-        /**
-         * How many days to display at a time. Days will be displayed starting with
-         * [.mWeekStart].
-         */
-        const val VIEW_PARAMS_NUM_DAYS = "num_days"
-
-        /**
-         * Which month is currently in focus, as defined by [Time.month]
-         * [0-11].
-         */
-        const val VIEW_PARAMS_FOCUS_MONTH = "focus_month"
-
-        /**
-         * If this month should display week numbers. false if 0, true otherwise.
-         */
-        const val VIEW_PARAMS_SHOW_WK_NUM = "show_wk_num"
         protected var DEFAULT_HEIGHT = 32
         protected var MIN_HEIGHT = 10
         protected const val DEFAULT_SELECTED_DAY = -1
@@ -60,6 +60,9 @@ open class SimpleWeeksAdapter(context: Context, params: HashMap<String?, Int?>?)
     protected var mDaysPerWeek = DEFAULT_DAYS_PER_WEEK
     protected var mFocusMonth = DEFAULT_MONTH_FOCUS
 
+    // Filled in for each view that is bound, the views keep their own copy
+    @JvmField protected val mWeekParams: WeekParams = WeekParams()
+
     /**
      * Set up the gesture detector and selected time
      */
@@ -154,15 +157,11 @@ open class SimpleWeeksAdapter(context: Context, params: HashMap<String?, Int?>?)
         return position.toLong()
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     override fun getView(position: Int, convertView: View?, parent: ViewGroup): View {
         val v: SimpleWeekView
-        var drawingParams: HashMap<String?, Int?>? = null
         if (convertView != null) {
             v = convertView as SimpleWeekView
-            // We store the drawing parameters in the view so it can be recycled
-            drawingParams = v.getTag() as HashMap<String?, Int?>
         } else {
             v = SimpleWeekView(mContext)
             // Set up the new view
@@ -173,27 +172,22 @@ open class SimpleWeeksAdapter(context: Context, params: HashMap<String?, Int?>?)
             v.setClickable(true)
             v.setOnTouchListener(this)
         }
-        if (drawingParams == null) {
-            drawingParams = HashMap<String?, Int?>()
-        }
-        drawingParams.clear()
         var selectedDay = -1
         if (mSelectedWeek == position) {
             selectedDay = mSelectedDay!!.weekDay
         }
 
         // pass in all the view parameters
-        drawingParams.put(
-            SimpleWeekView.VIEW_PARAMS_HEIGHT,
-            (parent.getHeight() - WEEK_7_OVERHANG_HEIGHT) / mNumWeeks
-        )
-        drawingParams.put(SimpleWeekView.VIEW_PARAMS_SELECTED_DAY, selectedDay)
-        drawingParams.put(SimpleWeekView.VIEW_PARAMS_SHOW_WK_NUM, if (mShowWeekNumber) 1 else 0)
-        drawingParams.put(SimpleWeekView.VIEW_PARAMS_WEEK_START, mFirstDayOfWeek)
-        drawingParams.put(SimpleWeekView.VIEW_PARAMS_NUM_DAYS, mDaysPerWeek)
-        drawingParams.put(SimpleWeekView.VIEW_PARAMS_WEEK, position)
-        drawingParams.put(SimpleWeekView.VIEW_PARAMS_FOCUS_MONTH, mFocusMonth)
-        v.setWeekParams(drawingParams, mSelectedDay!!.timezone)
+        val weekParams: WeekParams = mWeekParams
+        weekParams.height = (parent.getHeight() - WEEK_7_OVERHANG_HEIGHT) / mNumWeeks
+        weekParams.selectedDay = selectedDay
+        weekParams.showWeekNum = mShowWeekNumber
+        weekParams.weekStart = mFirstDayOfWeek
+        weekParams.numDays = mDaysPerWeek
+        weekParams.week = position
+        weekParams.focusMonth = mFocusMonth
+        weekParams.animateToday = false
+        v.setWeekParams(weekParams, mSelectedDay!!.timezone)
         v.invalidate()
         return v
     }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.calendar.month
+
+import android.content.res.Configuration
+import android.text.format.Time
+
+/**
+ * The parameters for displaying a single week, see
+ * [SimpleWeekView.setWeekParams]. An adapter fills in one instance for each
+ * view it binds and the view copies it, so binding doesn't allocate.
+ */
+class WeekParams {
+    /**
+     * The position (or weeks since the epoch) of this week, calculated using
+     * [com.android.calendar.Utils.getWeeksSinceEpochFromJulianDay]. This is
+     * the only required field.
+     */
+    @JvmField var week = -1
+
+    /**
+     * The height of this week in pixels
+     */
+    @JvmField var height = 0
+
+    /**
+     * Which day in this week is selected, [Time.SUNDAY] through
+     * [Time.SATURDAY], or -1 for none.
+     */
+    @JvmField var selectedDay = -1
+
+    /**
+     * Which day the week should start on. [Time.SUNDAY] through
+     * [Time.SATURDAY].
+     */
+    @JvmField var weekStart = Time.SUNDAY
+
+    /**
+     * How many days to display at a time, starting with [weekStart].
+     */
+    @JvmField var numDays = 7
+
+    /**
+     * Which month is currently in focus, as defined by [Time.month] [0-11],
+     * or -1 for no focus month.
+     */
+    @JvmField var focusMonth = -1
+
+    /**
+     * If this week should display its week number.
+     */
+    @JvmField var showWeekNum = false
+
+    /**
+     * The orientation events are laid out for in [MonthWeekEventsView].
+     */
+    @JvmField var orientation = Configuration.ORIENTATION_LANDSCAPE
+
+    /**
+     * If [MonthWeekEventsView] should animate the highlight of today.
+     */
+    @JvmField var animateToday = false
+
+    fun set(other: WeekParams) {
+        week = other.week
+        height = other.height
+        selectedDay = other.selectedDay
+        weekStart = other.weekStart
+        numDays = other.numDays
+        focusMonth = other.focusMonth
+        showWeekNum = other.showWeekNum
+        orientation = other.orientation
+        animateToday = other.animateToday
+    }
+
+    /**
+     * Returns whether other lays out the same week, so that at most the
+     * selected day or today's animation differ.
+     */
+    fun isSameWeek(other: WeekParams): Boolean {
+        return week == other.week && height == other.height && weekStart == other.weekStart &&
+            numDays == other.numDays && focusMonth == other.focusMonth &&
+            showWeekNum == other.showWeekNum && orientation == other.orientation
+    }
+}
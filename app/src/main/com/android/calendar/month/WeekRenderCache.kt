@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.calendar.month
+
+import android.graphics.RenderNode
+import android.util.LruCache
+
+/**
+ * Keeps the recorded drawing of month week rows, so a row that scrolls back
+ * onto the screen is replayed instead of drawn again. Recordings are keyed by
+ * everything that goes into drawing the row, and the cache is capped by the
+ * approximate memory they use.
+ */
+class WeekRenderCache(maxBytes: Int) {
+    private val mNodes: LruCache<WeekKey, RenderNode> =
+        object : LruCache<WeekKey, RenderNode>(maxBytes) {
+            // Evicted recordings are left to be collected rather than
+            // discarded, as a row on screen may still be showing them.
+            override fun sizeOf(key: WeekKey, value: RenderNode): Int {
+                return Math.max(value.computeApproximateMemoryUsage().toInt(), 1)
+            }
+        }
+
+    /**
+     * What a week row's drawing depends on, other than the theme and the
+     * time formatting settings, which clear the whole cache when they change.
+     */
+    class WeekKey(
+        val firstJulianDay: Int,
+        val numDays: Int,
+        val showWeekNum: Boolean,
+        val focusDays: Int,
+        val todayIndex: Int,
+        val width: Int,
+        val height: Int,
+        val orientation: Int,
+        val showDetails: Boolean,
+        val eventsGeneration: Int
+    ) {
+        override fun equals(other: Any?): Boolean {
+            if (other !is WeekKey) {
+                return false
+            }
+            return firstJulianDay == other.firstJulianDay && numDays == other.numDays &&
+                showWeekNum == other.showWeekNum && focusDays == other.focusDays &&
+                todayIndex == other.todayIndex && width == other.width &&
+                height == other.height && orientation == other.orientation &&
+                showDetails == other.showDetails && eventsGeneration == other.eventsGeneration
+        }
+
+        override fun hashCode(): Int {
+            var result = firstJulianDay
+            result = 31 * result + numDays
+            result = 31 * result + (if (showWeekNum) 1 else 0)
+            result = 31 * result + focusDays
+            result = 31 * result + todayIndex
+            result = 31 * result + width
+            result = 31 * result + height
+            result = 31 * result + orientation
+            result = 31 * result + (if (showDetails) 1 else 0)
+            result = 31 * result + eventsGeneration
+            return result
+        }
+    }
+
+    /**
+     * Returns the recording for the key, or null if there is none or it has
+     * been discarded.
+     */
+    operator fun get(key: WeekKey): RenderNode? {
+        val node: RenderNode? = mNodes.get(key)
+        if (node != null && !node.hasDisplayList()) {
+            mNodes.remove(key)
+            return null
+        }
+        return node
+    }
+
+    fun put(key: WeekKey, node: RenderNode) {
+        mNodes.put(key, node)
+    }
+
+    fun clear() {
+        mNodes.evictAll()
+    }
+}
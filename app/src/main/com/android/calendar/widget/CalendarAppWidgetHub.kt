@@ -0,0 +1,522 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.calendar.widget
+
+import android.app.AlarmManager
+import android.app.PendingIntent
+import android.appwidget.AppWidgetManager
+import android.content.BroadcastReceiver.PendingResult
+import android.content.Context
+import android.content.CursorLoader
+import android.content.Intent
+import android.content.Loader
+import android.database.Cursor
+import android.net.Uri
+import android.os.Handler
+import android.os.Looper
+import android.provider.CalendarContract.Attendees
+import android.provider.CalendarContract.Calendars
+import android.provider.CalendarContract.Instances
+import android.text.format.DateUtils
+import android.text.format.Time
+import android.util.Log
+import com.android.calendar.R
+import com.android.calendar.Utils
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Loads the events shown by all the calendar widgets in the process. One
+ * loader runs the instances query for the current time zone and hide-declined
+ * setting, and every [CalendarAppWidgetService.CalendarFactory] shows the
+ * same [CalendarAppWidgetModel] built from it. A model is never changed once
+ * published, so factories can keep the one they last read. Widgets are told to
+ * refresh once for each new model.
+ */
+internal class CalendarAppWidgetHub private constructor(context: Context) :
+    Loader.OnLoadCompleteListener<Cursor?> {
+    private val mContext: Context = context
+    private val mHandler: Handler = Handler(Looper.getMainLooper())
+
+    // Reads the selection from the preferences and loads changed events off
+    // the main thread. Must be single threaded so updates run in order. Its
+    // thread goes away while there is nothing to do.
+    private val mExecutor: ThreadPoolExecutor = ThreadPoolExecutor(1, 1,
+        EXECUTOR_KEEP_ALIVE, TimeUnit.MILLISECONDS, LinkedBlockingQueue<Runnable>())
+    private val mLock: Object = Object()
+
+    // Only used on the main thread
+    private var mLoader: CursorLoader? = null
+
+    // The number of factories started and not yet stopped. The loader only
+    // runs while there are any. Only used on the main thread.
+    private var mClients = 0
+
+    // The plan the loader queries with, and the window the next full load
+    // starts from. Only used on the main thread.
+    private var mLoaderPlan: WidgetQueryPlan = WidgetQueryPlan.DEFAULT
+
+    // The selection the loader was given, before getUpcomingSelection
+    private var mLoaderSelection: String? = null
+    private var mDays = WidgetQueryPlan.MIN_DAYS
+    private val mVersion: AtomicInteger = AtomicInteger(0)
+
+    @Volatile
+    private var mModel: CalendarAppWidgetModel? = null
+
+    // Suppresses unnecessary broadcasts about the date changing
+    private var mLastUpdateTime = UPDATE_TIME_NO_EVENTS
+    private val mTimezoneChanged: Runnable = object : Runnable {
+        @Override
+        override fun run() {
+            if (mLoader != null) {
+                mLoader?.forceLoad()
+            }
+        }
+    }
+
+    /**
+     * Returns the latest model, or null if none has been loaded yet.
+     */
+    fun getModel(): CalendarAppWidgetModel? {
+        return mModel
+    }
+
+    /**
+     * Starts loading if nothing has yet. Each call must be matched by a call
+     * to [stop] once the caller no longer shows the model.
+     */
+    fun start() {
+        mExecutor.submit(object : Runnable {
+            @Override
+            override fun run() {
+                val selection = queryForSelection()
+                val rowBudget: Int = WidgetQueryPlan.getRowBudget(mContext)
+                mHandler.post(object : Runnable {
+                    @Override
+                    override fun run() {
+                        mClients++
+                        if (mLoader == null) {
+                            initLoader(selection, WidgetQueryPlan(mDays, rowBudget))
+                        }
+                    }
+                })
+            }
+        })
+    }
+
+    /**
+     * Stops loading once every caller of [start] has stopped, so the loader
+     * no longer observes the calendar after the last widget goes away.
+     */
+    fun stop() {
+        // Posted through the executor so it runs after the matching start
+        mExecutor.submit(object : Runnable {
+            @Override
+            override fun run() {
+                mHandler.post(object : Runnable {
+                    @Override
+                    override fun run() {
+                        if (mClients > 0 && --mClients == 0 && mLoader != null) {
+                            mLoader?.unregisterListener(this@CalendarAppWidgetHub)
+                            mLoader?.reset()
+                            mLoader = null
+                        }
+                    }
+                })
+            }
+        })
+    }
+
+    /**
+     * Brings the model up to date, finishing result once the update has been
+     * handled. If changedEventIds is set, only those events are reloaded when
+     * possible.
+     */
+    fun update(changedEventIds: LongArray?, result: PendingResult) {
+        // We cannot do any queries from the UI thread, so push the 'selection' query
+        // to a background thread.  However the implementation of the latter query
+        // (cursor loading) uses CursorLoader which must be initiated from the UI thread,
+        // so there is some handshaking here.
+        mExecutor.submit(object : Runnable {
+            @Override
+            override fun run() {
+                // We always complete queryForSelection() even if the load task ends up being
+                // canceled because of a more recent one.  Optimizing this to allow
+                // canceling would require keeping track of all the PendingResults
+                // (from goAsync) to abort them.  Defer this until it becomes a problem.
+                val selection = queryForSelection()
+                if (changedEventIds != null && applyChangedEvents(selection, changedEventIds)) {
+                    result.finish()
+                    return
+                }
+                // The widgets may have been resized since the last load
+                val rowBudget: Int = WidgetQueryPlan.getRowBudget(mContext)
+                val version: Int = mVersion.incrementAndGet()
+                mHandler.post(object : Runnable {
+                    @Override
+                    override fun run() {
+                        val plan = WidgetQueryPlan(mDays, rowBudget)
+                        if (mLoader == null) {
+                            // No widget list is showing, the next to start
+                            // loads the events.
+                            if (mClients > 0) {
+                                initLoader(selection, plan)
+                            }
+                        } else if (version >= mVersion.get()) {
+                            // Only the newest of the queued updates reloads
+                            reload(selection, plan)
+                        }
+                        result.finish()
+                    }
+                })
+            }
+        })
+    }
+
+    /**
+     * Query across all calendars for upcoming event instances from now
+     * until some time in the future. Widen the time range that we query by
+     * one day on each end so that we can catch all-day events. All-day
+     * events are stored starting at midnight in UTC but should be included
+     * in the list of events starting at midnight local time. This may fetch
+     * more events than we actually want, so we filter them out later.
+     *
+     * @param selection The selection string for the loader to filter the query with.
+     * @param plan The time range and number of instances to query for.
+     */
+    private fun initLoader(selection: String?, plan: WidgetQueryPlan) {
+        if (LOGD) Log.d(TAG, "Querying for widget events...")
+
+        // Search for events from now until some time in the future
+        val uri: Uri = createLoaderUri(plan)
+        mLoaderPlan = plan
+        mLoaderSelection = selection
+        mLoader = CursorLoader(
+            mContext, uri, CalendarAppWidgetService.EVENT_PROJECTION,
+            getUpcomingSelection(selection, System.currentTimeMillis()), null,
+            getSortOrder(plan)
+        )
+        mLoader?.setUpdateThrottle(CalendarAppWidgetService.WIDGET_UPDATE_THROTTLE.toLong())
+        mLoader?.registerListener(0, this)
+        mLoader?.startLoading()
+    }
+
+    /**
+     * Loads the events again with the given selection and plan.
+     */
+    private fun reload(selection: String?, plan: WidgetQueryPlan) {
+        mLoaderPlan = plan
+        mLoaderSelection = selection
+        mLoader?.setUri(createLoaderUri(plan))
+        mLoader?.setSelection(getUpcomingSelection(selection, System.currentTimeMillis()))
+        mLoader?.setSortOrder(getSortOrder(plan))
+        mLoader?.forceLoad()
+    }
+
+    /**
+     * This gets the selection string for the loader.  This ends up doing a query in the
+     * shared preferences.
+     */
+    private fun queryForSelection(): String {
+        return if (Utils.getHideDeclinedEvents(mContext)) EVENT_SELECTION_HIDE_DECLINED
+        else EVENT_SELECTION
+    }
+
+    /**
+     * @return The uri for the loader to search the plan's days with
+     */
+    private fun createLoaderUri(plan: WidgetQueryPlan): Uri {
+        val now: Long = System.currentTimeMillis()
+        // Add a day on either side to catch all-day events
+        val begin: Long = now - DateUtils.DAY_IN_MILLIS
+        val end: Long =
+            now + plan.days * DateUtils.DAY_IN_MILLIS + DateUtils.DAY_IN_MILLIS
+        return Uri.withAppendedPath(
+            Instances.CONTENT_URI,
+            begin.toString() + "/" + end
+        )
+    }
+
+    @Override
+    override fun onLoadComplete(loader: Loader<Cursor?>?, cursor: Cursor?) {
+        if (cursor == null) {
+            return
+        }
+        if (cursor.isClosed()) {
+            Log.wtf(TAG, "Got a closed cursor from onLoadComplete")
+            return
+        }
+        val now: Long = System.currentTimeMillis()
+        val tz: String = Utils.getTimeZone(mContext, mTimezoneChanged) as String
+
+        // Read the rows once into typed arrays and build from those.
+        val table: WidgetEventTable = try {
+            WidgetEventTable.fromCursor(cursor)
+        } finally {
+            cursor.close()
+        }
+        val plan: WidgetQueryPlan = mLoaderPlan
+        val model = CalendarAppWidgetModel(mContext, tz, plan)
+        model.buildFromTable(table, tz)
+        val cursorLoader: CursorLoader = loader as CursorLoader
+        if (plan.shouldWiden(model)) {
+            // Too few events to fill the widgets, so look further ahead
+            // before showing them
+            reload(mLoaderSelection, plan.widen())
+            return
+        }
+        // Keep a widened window for sparse calendars, but go back to the
+        // narrowest one once the window holds more events than are shown.
+        mDays = if (model.mTruncated) WidgetQueryPlan.MIN_DAYS else plan.days
+        model.mQueryUri = cursorLoader.getUri()
+        model.mSelection = mLoaderSelection
+        synchronized(mLock) {
+            val shown: CalendarAppWidgetModel? = mModel
+            if (shown != null && model.showsSameAs(shown)) {
+                // None of the changes are shown, so keep the widgets' rows
+                // and only set the alarm again, from the reloaded events
+                if (LOGD) Log.d(TAG, "Reloaded events aren't in the widget, not updating")
+                shown.mQueryUri = model.mQueryUri
+                if (getWidgetIds().isNotEmpty()) {
+                    scheduleUpdate(model, now, tz)
+                }
+                return
+            }
+            publish(model, now, tz)
+        }
+    }
+
+    /**
+     * Applies a change to only the given events, querying just their
+     * instances and patching them into the current model. The widgets
+     * aren't refreshed at all if none of the events were or are now in
+     * the widget's time range. Returns false if the model can't be
+     * patched and has to be loaded again.
+     */
+    private fun applyChangedEvents(selection: String, changedEventIds: LongArray): Boolean {
+        val base: CalendarAppWidgetModel = mModel ?: return false
+        val uri: Uri = base.mQueryUri ?: return false
+        if (base.mTruncated || selection != base.mSelection) {
+            return false
+        }
+        val now: Long = System.currentTimeMillis()
+        val tz: String = Utils.getTimeZone(mContext, mTimezoneChanged) as String
+        val model = CalendarAppWidgetModel(mContext, tz, base.mPlan)
+        if (tz != base.mTimeZone || model.mTodayJulianDay != base.mTodayJulianDay) {
+            return false
+        }
+        if (changedEventIds.isEmpty()) {
+            return true
+        }
+        val where = StringBuilder(getUpcomingSelection(selection, now))
+        where.append(" AND ").append(Instances.EVENT_ID).append(" IN (")
+        for (i in changedEventIds.indices) {
+            if (i > 0) {
+                where.append(',')
+            }
+            where.append(changedEventIds[i])
+        }
+        where.append(')')
+        val cursor: Cursor = mContext.getContentResolver().query(uri,
+            CalendarAppWidgetService.EVENT_PROJECTION, where.toString(), null,
+            getSortOrder(base.mPlan)) ?: return false
+        val table: WidgetEventTable = try {
+            WidgetEventTable.fromCursor(cursor)
+        } finally {
+            cursor.close()
+        }
+        if (table.size >= base.mPlan.limit) {
+            return false
+        }
+        if (table.size == 0 && !base.containsAnyEvent(changedEventIds)) {
+            if (LOGD) Log.d(TAG, "Changed events aren't in the widget, not updating")
+            return true
+        }
+        model.buildFromChangedEvents(base, changedEventIds, table, tz)
+        synchronized(mLock) {
+            if (mModel !== base) {
+                // Reloaded meanwhile, so patching would drop other changes
+                return false
+            }
+            publish(model, now, tz)
+        }
+        return true
+    }
+
+    /**
+     * Makes the model the one all widgets show, schedules the next update
+     * for it and tells the widgets their data changed. Must be called with
+     * mLock held.
+     */
+    private fun publish(model: CalendarAppWidgetModel, now: Long, tz: String) {
+        mModel = model
+        val ids: IntArray = getWidgetIds()
+        if (ids.isEmpty()) {
+            // The last widget was removed, so don't bring back the update
+            // alarm CalendarAppWidgetProvider.onDisabled cancelled.
+            return
+        }
+        scheduleUpdate(model, now, tz)
+        val time = Time(Utils.getTimeZone(mContext, null))
+        time.setToNow()
+        if (time.normalize(true) != mLastUpdateTime) {
+            val time2 = Time(Utils.getTimeZone(mContext, null))
+            time2.set(mLastUpdateTime)
+            time2.normalize(true)
+            if (time.year != time2.year || time.yearDay != time2.yearDay) {
+                val updateIntent = Intent(
+                    Utils.getWidgetUpdateAction(mContext)
+                )
+                mContext.sendBroadcast(updateIntent)
+            }
+            mLastUpdateTime = time.toMillis(true)
+        }
+        AppWidgetManager.getInstance(mContext)
+            ?.notifyAppWidgetViewDataChanged(ids, R.id.events_list)
+    }
+
+    /**
+     * Returns the ids of the calendar widgets, empty if there are none.
+     */
+    private fun getWidgetIds(): IntArray {
+        val widgetManager: AppWidgetManager =
+            AppWidgetManager.getInstance(mContext) ?: return IntArray(0)
+        return widgetManager.getAppWidgetIds(CalendarAppWidgetProvider.getComponentName(mContext))
+    }
+
+    /**
+     * Sets the alarm for the next time the widgets showing model have to
+     * be updated.
+     */
+    private fun scheduleUpdate(model: CalendarAppWidgetModel, now: Long, tz: String) {
+        // Schedule an alarm to wake ourselves up for the next update.
+        // We also cancel
+        // all existing wake-ups because PendingIntents don't match
+        // against extras.
+        var triggerTime = calculateUpdateTime(model, now, tz)
+
+        // If no next-update calculated, or bad trigger time in past,
+        // schedule
+        // update about six hours from now.
+        if (triggerTime < now) {
+            Log.w(TAG, "Encountered bad trigger time " +
+                CalendarAppWidgetService.formatDebugTime(triggerTime, now))
+            triggerTime = now + UPDATE_TIME_NO_EVENTS
+        }
+        val alertManager: AlarmManager = mContext
+            .getSystemService(Context.ALARM_SERVICE) as AlarmManager
+        val pendingUpdate: PendingIntent = CalendarAppWidgetProvider
+            .getUpdateIntent(mContext)
+        alertManager.cancel(pendingUpdate)
+        alertManager.set(AlarmManager.RTC, triggerTime, pendingUpdate)
+    }
+
+    /**
+     * Calculates and returns the next time we should push widget updates.
+     */
+    private fun calculateUpdateTime(
+        model: CalendarAppWidgetModel,
+        now: Long,
+        timeZone: String
+    ): Long {
+        // Make sure an update happens at midnight or earlier
+        var minUpdateTime = getNextMidnightTimeMillis(timeZone)
+        for (event in model.mEventInfos) {
+            val start: Long
+            val end: Long
+            start = event.start
+            end = event.end
+
+            // We want to update widget when we enter/exit time range of an event.
+            if (now < start) {
+                minUpdateTime = Math.min(minUpdateTime, start)
+            } else if (now < end) {
+                minUpdateTime = Math.min(minUpdateTime, end)
+            }
+        }
+        return minUpdateTime
+    }
+
+    companion object {
+        private const val TAG = "CalendarWidget"
+        private const val LOGD = false
+        private val EVENT_SORT_ORDER: String = (Instances.START_DAY.toString() + " ASC, " +
+            Instances.START_MINUTE + " ASC, " + Instances.END_DAY + " ASC, " +
+            Instances.END_MINUTE + " ASC LIMIT ")
+        private val EVENT_SELECTION: String = Calendars.VISIBLE.toString() + "=1"
+        private val EVENT_SELECTION_HIDE_DECLINED: String =
+            (Calendars.VISIBLE.toString() + "=1 AND " +
+                Instances.SELF_ATTENDEE_STATUS + "!=" + Attendees.ATTENDEE_STATUS_DECLINED)
+
+        /**
+         * Update interval used when no next-update calculated, or bad trigger time in past.
+         * Unit: milliseconds.
+         */
+        private val UPDATE_TIME_NO_EVENTS: Long = DateUtils.HOUR_IN_MILLIS * 6
+
+        // How long the executor's thread waits for more work before exiting
+        private const val EXECUTOR_KEEP_ALIVE: Long = 30 * DateUtils.SECOND_IN_MILLIS
+
+        private var mInstance: CalendarAppWidgetHub? = null
+
+        @JvmStatic @Synchronized fun getInstance(context: Context): CalendarAppWidgetHub {
+            if (mInstance == null) {
+                mInstance = CalendarAppWidgetHub(context.getApplicationContext())
+            }
+            return mInstance as CalendarAppWidgetHub
+        }
+
+        /**
+         * Returns selection narrowed down to instances that haven't ended by
+         * now, so that ended ones don't count against the query's LIMIT.
+         * All-day instances are kept, as they end at midnight UTC rather
+         * than local midnight and are filtered once converted.
+         */
+        @JvmStatic private fun getUpcomingSelection(selection: String?, now: Long): String {
+            return "(" + selection + ") AND (" + Instances.ALL_DAY + "=1 OR " +
+                Instances.END + ">=" + now + ")"
+        }
+
+        @JvmStatic private fun getSortOrder(plan: WidgetQueryPlan): String {
+            return EVENT_SORT_ORDER + plan.limit
+        }
+
+        @JvmStatic private fun getNextMidnightTimeMillis(timezone: String): Long {
+            val time = Time()
+            time.setToNow()
+            time.monthDay++
+            time.hour = 0
+            time.minute = 0
+            time.second = 0
+            val midnightDeviceTz: Long = time.normalize(true)
+            time.timezone = timezone
+            time.setToNow()
+            time.monthDay++
+            time.hour = 0
+            time.minute = 0
+            time.second = 0
+            val midnightHomeTz: Long = time.normalize(true)
+            return Math.min(midnightDeviceTz, midnightHomeTz)
+        }
+    }
+
+    init {
+        mExecutor.allowCoreThreadTimeOut(true)
+    }
+}
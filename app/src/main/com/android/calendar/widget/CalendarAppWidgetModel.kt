@@ -19,6 +19,8 @@ import com.android.calendar.R
 import com.android.calendar.Utils
 import android.content.Context
 import android.database.Cursor
+import android.net.Uri
+import android.provider.CalendarContract.Attendees
 import android.text.TextUtils
 import android.text.format.DateFormat
 import android.text.format.DateUtils
@@ -26,10 +28,21 @@ import android.text.format.Time
 import android.util.Log
 import android.view.View
 import java.util.ArrayList
+import java.util.Collections
+import java.util.Comparator
+import java.util.HashSet
 import java.util.LinkedList
 import java.util.TimeZone
 
-internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
+internal class CalendarAppWidgetModel @JvmOverloads constructor(
+    context: Context,
+    timeZone: String?,
+    plan: WidgetQueryPlan = WidgetQueryPlan.DEFAULT
+) {
+    @JvmField val mTimeZone: String? = timeZone
+
+    // The days and rows this model covers, which the query must match
+    @JvmField val mPlan: WidgetQueryPlan = plan
     private var mHomeTZName: String? = null
     private var mShowTZ = false
 
@@ -78,6 +91,8 @@ internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
         @JvmField var end: Long = 0
         @JvmField var allDay = false
         @JvmField var color = 0
+        @JvmField var startDay = 0
+        @JvmField var endDay = 0
 
         @Override
         override fun toString(): String {
@@ -125,7 +140,7 @@ internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
 
         @Override
         override fun equals(obj: Any?): Boolean {
-            if (this == obj) return true
+            if (this === obj) return true
             if (obj == null) return false
             if (this::class != obj::class) return false
             val other = obj as EventInfo
@@ -191,7 +206,7 @@ internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
 
         @Override
         override fun equals(obj: Any?): Boolean {
-            if (this == obj) return true
+            if (this === obj) return true
             if (obj == null) return false
             if (this::class !== obj::class) return false
             val other = obj as DayInfo
@@ -202,20 +217,170 @@ internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
         }
     }
 
+    /**
+     * [RowDescriptor] holds everything an event row is drawn with, worked out
+     * when the model is built so that the widget only has to copy it into
+     * RemoteViews. Rows that are drawn the same are equal, which lets the
+     * widget reuse their views across models.
+     */
+    internal class RowDescriptor(
+        @JvmField val eventInfo: EventInfo,
+        @JvmField val layout: Int,
+        @JvmField val background: Int,
+        @JvmField val chipResource: Int,
+        @JvmField val chipColor: Int,
+        @JvmField val titleColor: Int,
+        // The color of the when and where text, unused for all-day rows
+        @JvmField val detailColor: Int,
+        // The UTC times the row's fill-in intent opens the event at
+        @JvmField val fillInStart: Long,
+        @JvmField val fillInEnd: Long
+    ) {
+        @Override
+        override fun hashCode(): Int {
+            val prime = 31
+            var result = eventInfo.hashCode()
+            result = prime * result + layout
+            result = prime * result + background
+            result = prime * result + chipResource
+            result = prime * result + chipColor
+            result = prime * result + titleColor
+            result = prime * result + detailColor
+            result = prime * result + (fillInStart xor (fillInStart ushr 32)).toInt()
+            result = prime * result + (fillInEnd xor (fillInEnd ushr 32)).toInt()
+            return result
+        }
+
+        @Override
+        override fun equals(obj: Any?): Boolean {
+            if (this === obj) return true
+            if (obj == null) return false
+            if (this::class != obj::class) return false
+            val other = obj as RowDescriptor
+            return layout == other.layout && background == other.background &&
+                chipResource == other.chipResource && chipColor == other.chipColor &&
+                titleColor == other.titleColor && detailColor == other.detailColor &&
+                fillInStart == other.fillInStart && fillInEnd == other.fillInEnd &&
+                eventInfo.equals(other.eventInfo)
+        }
+    }
+
     @JvmField val mRowInfos: ArrayList<RowInfo>
     @JvmField val mEventInfos: ArrayList<EventInfo>
+
+    // How each of mEventInfos is drawn, in the same order
+    @JvmField val mRowDescriptors: ArrayList<RowDescriptor>
     @JvmField val mDayInfos: ArrayList<DayInfo>
     @JvmField val mContext: Context?
     @JvmField val mNow: Long
     @JvmField val mTodayJulianDay: Int
     @JvmField val mMaxJulianDay: Int
+
+    // Whether the query limit cut off the events, so events missing from
+    // this model may still fall in its time range.
+    @JvmField var mTruncated = false
+
+    // The number of event rows, which is less than the plan's row budget
+    // only if the events in the time range ran out
+    @JvmField var mEventRowCount = 0
+
+    // The query this model was loaded with, used to load changed events
+    @JvmField var mQueryUri: Uri? = null
+    @JvmField var mSelection: String? = null
+
     fun buildFromCursor(cursor: Cursor, timeZone: String?) {
+        buildFromTable(WidgetEventTable.fromCursor(cursor), timeZone)
+    }
+
+    fun buildFromTable(table: WidgetEventTable, timeZone: String?) {
         val recycle = Time(timeZone)
-        val mBuckets: ArrayList<LinkedList<RowInfo>> =
-            ArrayList<LinkedList<RowInfo>>(CalendarAppWidgetService.MAX_DAYS)
-        for (i in 0 until CalendarAppWidgetService.MAX_DAYS) {
-            mBuckets.add(LinkedList<RowInfo>())
+        setUpTimeZone(recycle, timeZone)
+        mTruncated = table.size >= mPlan.limit
+        addEvents(table, recycle)
+        buildRows(recycle)
+        buildRowDescriptors()
+    }
+
+    /**
+     * Builds this model from base, replacing the events in changedEventIds
+     * with their instances in table. The table must come from the query
+     * base was built from, narrowed down to the changed events.
+     */
+    fun buildFromChangedEvents(
+        base: CalendarAppWidgetModel,
+        changedEventIds: LongArray,
+        table: WidgetEventTable,
+        timeZone: String?
+    ) {
+        val recycle = Time(timeZone)
+        setUpTimeZone(recycle, timeZone)
+        mTruncated = base.mTruncated
+        mQueryUri = base.mQueryUri
+        mSelection = base.mSelection
+        val changed: HashSet<Long> = HashSet<Long>(changedEventIds.size)
+        for (id in changedEventIds) {
+            changed.add(id)
+        }
+        for (eventInfo in base.mEventInfos) {
+            if (!changed.contains(eventInfo.id) && eventInfo.end >= mNow) {
+                mEventInfos.add(eventInfo)
+            }
+        }
+        if (addEvents(table, recycle) > 0) {
+            // Put the changed events back in the query's sort order
+            Collections.sort(mEventInfos, EVENT_ORDER)
+        }
+        buildRows(recycle)
+        buildRowDescriptors()
+    }
+
+    /**
+     * Returns whether any of the events is shown in this model.
+     */
+    fun containsAnyEvent(eventIds: LongArray): Boolean {
+        for (eventInfo in mEventInfos) {
+            for (id in eventIds) {
+                if (eventInfo.id == id) {
+                    return true
+                }
+            }
         }
+        return false
+    }
+
+    /**
+     * Returns whether this model shows exactly the rows other does and was
+     * loaded the same way, so widgets showing other don't need to be told
+     * about this one. A reload after a change to events that aren't shown,
+     * such as a sync touching events past the last row, builds such a model.
+     */
+    fun showsSameAs(other: CalendarAppWidgetModel): Boolean {
+        if (!TextUtils.equals(mTimeZone, other.mTimeZone) ||
+            mTodayJulianDay != other.mTodayJulianDay || mTruncated != other.mTruncated ||
+            mPlan.days != other.mPlan.days || mPlan.rowBudget != other.mPlan.rowBudget ||
+            !TextUtils.equals(mSelection, other.mSelection) ||
+            mRowInfos.size != other.mRowInfos.size) {
+            return false
+        }
+        for (i in mRowInfos.indices) {
+            val row: RowInfo = mRowInfos[i]
+            val otherRow: RowInfo = other.mRowInfos[i]
+            if (row.mType != otherRow.mType || row.mIndex != otherRow.mIndex) {
+                return false
+            }
+            val same: Boolean = if (row.mType == RowInfo.TYPE_DAY) {
+                mDayInfos[row.mIndex].equals(other.mDayInfos[row.mIndex])
+            } else {
+                mRowDescriptors[row.mIndex].equals(other.mRowDescriptors[row.mIndex])
+            }
+            if (!same) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun setUpTimeZone(recycle: Time, timeZone: String?) {
         recycle.setToNow()
         mShowTZ = !TextUtils.equals(timeZone, Time.getCurrentTimezone())
         if (mShowTZ) {
@@ -224,23 +389,20 @@ internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
                 TimeZone.SHORT
             )
         }
-        cursor.moveToPosition(-1)
+    }
+
+    /**
+     * Adds the events in table that haven't ended yet and returns how many
+     * were added.
+     */
+    private fun addEvents(table: WidgetEventTable, recycle: Time): Int {
+        val count: Int = mEventInfos.size
         val tz = Utils.getTimeZone(mContext, null)
-        while (cursor.moveToNext()) {
-            val rowId: Int = cursor.getPosition()
-            val eventId: Long = cursor.getLong(CalendarAppWidgetService.INDEX_EVENT_ID)
-            val allDay = cursor.getInt(CalendarAppWidgetService.INDEX_ALL_DAY) !== 0
-            var start: Long = cursor.getLong(CalendarAppWidgetService.INDEX_BEGIN)
-            var end: Long = cursor.getLong(CalendarAppWidgetService.INDEX_END)
-            val title: String = cursor.getString(CalendarAppWidgetService.INDEX_TITLE)
-            val location: String = cursor.getString(CalendarAppWidgetService.INDEX_EVENT_LOCATION)
-            // we don't compute these ourselves because it seems to produce the
-            // wrong endDay for all day events
-            val startDay: Int = cursor.getInt(CalendarAppWidgetService.INDEX_START_DAY)
-            val endDay: Int = cursor.getInt(CalendarAppWidgetService.INDEX_END_DAY)
-            val color: Int = cursor.getInt(CalendarAppWidgetService.INDEX_COLOR)
-            val selfStatus: Int = cursor
-                .getInt(CalendarAppWidgetService.INDEX_SELF_ATTENDEE_STATUS)
+        for (row in 0 until table.size) {
+            val eventId: Long = table.id[row]
+            val allDay: Boolean = table.allDay[row]
+            var start: Long = table.begin[row]
+            var end: Long = table.end[row]
 
             // Adjust all-day times into local timezone
             if (allDay) {
@@ -249,7 +411,7 @@ internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
             }
             if (LOGD) {
                 Log.d(
-                    TAG, "Row #" + rowId + " allDay:" + allDay + " start:" + start +
+                    TAG, "Row #" + row + " allDay:" + allDay + " start:" + start +
                         " end:" + end + " eventId:" + eventId
                 )
             }
@@ -259,20 +421,34 @@ internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
             if (end < mNow) {
                 continue
             }
-            val i: Int = mEventInfos.size
+            // we don't compute the days ourselves because it seems to produce
+            // the wrong endDay for all day events
             mEventInfos.add(
                 populateEventInfo(
-                    eventId, allDay, start, end, startDay, endDay, title,
-                    location, color, selfStatus
+                    eventId, allDay, start, end, table.startDay[row], table.endDay[row],
+                    table.title[row], table.location[row], table.color[row],
+                    table.selfAttendeeStatus[row]
                 )
             )
+        }
+        return mEventInfos.size - count
+    }
+
+    private fun buildRows(recycle: Time) {
+        val mBuckets: ArrayList<LinkedList<RowInfo>> =
+            ArrayList<LinkedList<RowInfo>>(mPlan.days)
+        for (i in 0 until mPlan.days) {
+            mBuckets.add(LinkedList<RowInfo>())
+        }
+        for (i in 0 until mEventInfos.size) {
+            val eventInfo: EventInfo = mEventInfos.get(i)
             // populate the day buckets that this event falls into
-            val from: Int = Math.max(startDay, mTodayJulianDay)
-            val to: Int = Math.min(endDay, mMaxJulianDay)
+            val from: Int = Math.max(eventInfo.startDay, mTodayJulianDay)
+            val to: Int = Math.min(eventInfo.endDay, mMaxJulianDay)
             for (day in from..to) {
                 val bucket: LinkedList<RowInfo> = mBuckets.get(day - mTodayJulianDay)
                 val rowInfo = RowInfo(RowInfo.TYPE_MEETING, i)
-                if (allDay) {
+                if (eventInfo.allDay) {
                     bucket.addFirst(rowInfo)
                 } else {
                     bucket.add(rowInfo)
@@ -297,10 +473,90 @@ internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
                 count += bucket.size
             }
             day++
-            if (count >= CalendarAppWidgetService.EVENT_MIN_COUNT) {
+            if (count >= mPlan.rowBudget) {
                 break
             }
         }
+        mEventRowCount = count
+    }
+
+    private fun buildRowDescriptors() {
+        val resources = mContext?.getResources() ?: return
+        val declinedColor: Int = resources.getColor(R.color.appwidget_item_declined_color)
+        val standardColor: Int = resources.getColor(R.color.appwidget_item_standard_color)
+        val allDayColor: Int = resources.getColor(R.color.appwidget_item_allday_color)
+        val tz: String = Utils.getTimeZone(mContext, null) as String
+        // convertAlldayLocalToUTC leaves this in UTC, so it isn't shared with
+        // the model's other Time
+        val recycle = Time()
+        mRowDescriptors.ensureCapacity(mEventInfos.size)
+        for (eventInfo in mEventInfos) {
+            mRowDescriptors.add(populateRowDescriptor(
+                eventInfo, declinedColor, standardColor, allDayColor, tz, recycle))
+        }
+    }
+
+    private fun populateRowDescriptor(
+        eventInfo: EventInfo,
+        declinedColor: Int,
+        standardColor: Int,
+        allDayColor: Int,
+        tz: String,
+        recycle: Time
+    ): RowDescriptor {
+        val displayColor: Int = Utils.getDisplayColorFromColor(eventInfo.color)
+        val selfAttendeeStatus: Int = eventInfo.selfAttendeeStatus
+        val background: Int =
+            if (!eventInfo.allDay && eventInfo.start <= mNow && mNow <= eventInfo.end) {
+                R.drawable.agenda_item_bg_secondary
+            } else {
+                R.drawable.agenda_item_bg_primary
+            }
+        val chipResource: Int
+        val chipColor: Int
+        val titleColor: Int
+        var detailColor = 0
+        if (eventInfo.allDay) {
+            if (selfAttendeeStatus == Attendees.ATTENDEE_STATUS_INVITED) {
+                chipResource = R.drawable.widget_chip_not_responded_bg
+                titleColor = displayColor
+            } else {
+                chipResource = R.drawable.widget_chip_responded_bg
+                titleColor = allDayColor
+            }
+            chipColor = if (selfAttendeeStatus == Attendees.ATTENDEE_STATUS_DECLINED) {
+                // 40% opacity
+                Utils.getDeclinedColorFromColor(displayColor)
+            } else {
+                displayColor
+            }
+        } else if (selfAttendeeStatus == Attendees.ATTENDEE_STATUS_DECLINED) {
+            titleColor = declinedColor
+            detailColor = declinedColor
+            chipResource = R.drawable.widget_chip_responded_bg
+            // 40% opacity
+            chipColor = Utils.getDeclinedColorFromColor(displayColor)
+        } else {
+            titleColor = standardColor
+            detailColor = standardColor
+            chipResource = if (selfAttendeeStatus == Attendees.ATTENDEE_STATUS_INVITED) {
+                R.drawable.widget_chip_not_responded_bg
+            } else {
+                R.drawable.widget_chip_responded_bg
+            }
+            chipColor = displayColor
+        }
+        var start: Long = eventInfo.start
+        var end: Long = eventInfo.end
+        if (eventInfo.allDay) {
+            start = Utils.convertAlldayLocalToUTC(recycle, start, tz)
+            end = Utils.convertAlldayLocalToUTC(recycle, end, tz)
+        }
+        return RowDescriptor(
+            eventInfo,
+            if (eventInfo.allDay) R.layout.widget_all_day_item else R.layout.widget_item,
+            background, chipResource, chipColor, titleColor, detailColor, start, end
+        )
     }
 
     private fun populateEventInfo(
@@ -310,8 +566,8 @@ internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
         end: Long,
         startDay: Int,
         endDay: Int,
-        title: String,
-        location: String,
+        title: String?,
+        location: String?,
         color: Int,
         selfStatus: Int
     ): EventInfo {
@@ -342,6 +598,8 @@ internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
         eventInfo.start = start
         eventInfo.end = end
         eventInfo.allDay = allDay
+        eventInfo.startDay = startDay
+        eventInfo.endDay = endDay
         eventInfo.`when` = whenString.toString()
         eventInfo.visibWhen = visibWhen
         eventInfo.color = color
@@ -393,6 +651,22 @@ internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
     companion object {
         private val TAG: String = CalendarAppWidgetModel::class.java.getSimpleName()
         private const val LOGD = false
+
+        // The order of EVENT_SORT_ORDER in CalendarAppWidgetHub
+        private val EVENT_ORDER: Comparator<EventInfo> = object : Comparator<EventInfo> {
+            override fun compare(lhs: EventInfo, rhs: EventInfo): Int {
+                if (lhs.startDay != rhs.startDay) {
+                    return if (lhs.startDay < rhs.startDay) -1 else 1
+                }
+                if (lhs.start != rhs.start) {
+                    return if (lhs.start < rhs.start) -1 else 1
+                }
+                if (lhs.endDay != rhs.endDay) {
+                    return if (lhs.endDay < rhs.endDay) -1 else 1
+                }
+                return if (lhs.end < rhs.end) -1 else if (lhs.end > rhs.end) 1 else 0
+            }
+        }
     }
 
     init {
@@ -400,8 +674,9 @@ internal class CalendarAppWidgetModel(context: Context, timeZone: String?) {
         val time = Time(timeZone)
         time.setToNow() // This is needed for gmtoff to be set
         mTodayJulianDay = Time.getJulianDay(mNow, time.gmtoff)
-        mMaxJulianDay = mTodayJulianDay + CalendarAppWidgetService.MAX_DAYS - 1
+        mMaxJulianDay = mTodayJulianDay + mPlan.days - 1
         mEventInfos = ArrayList<EventInfo>(50)
+        mRowDescriptors = ArrayList<RowDescriptor>(50)
         mRowInfos = ArrayList<RowInfo>(50)
         mDayInfos = ArrayList<DayInfo>(8)
         mContext = context
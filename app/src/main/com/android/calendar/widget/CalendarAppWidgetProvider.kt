@@ -26,6 +26,7 @@ import android.content.ComponentName
 import android.content.Context
 import android.content.Intent
 import android.net.Uri
+import android.os.Bundle
 import android.provider.CalendarContract
 import android.text.format.DateUtils
 import android.text.format.Time
@@ -54,7 +55,7 @@ class CalendarAppWidgetProvider : AppWidgetProvider() {
             performUpdate(
                 context as Context, appWidgetManager,
                 appWidgetManager.getAppWidgetIds(getComponentName(context)),
-                null /* no eventIds */
+                intent?.getLongArrayExtra(EXTRA_EVENT_IDS)
             )
         } else if (action != null && (action.equals(Intent.ACTION_PROVIDER_CHANGED) ||
             action.equals(Intent.ACTION_TIME_CHANGED) ||
@@ -93,6 +94,22 @@ class CalendarAppWidgetProvider : AppWidgetProvider() {
             appWidgetIds, null /* no eventIds */)
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    override fun onAppWidgetOptionsChanged(
+        context: Context,
+        appWidgetManager: AppWidgetManager,
+        appWidgetId: Int,
+        newOptions: Bundle
+    ) {
+        // The number of rows loaded depends on the size of the widgets
+        val reloadIntent = Intent(Utils.getWidgetScheduledUpdateAction(context))
+        reloadIntent.setClass(context, CalendarAppWidgetService.CalendarFactory::class.java)
+        context.sendBroadcast(reloadIntent)
+    }
+
     /**
      * Process and push out an update for the given appWidgetIds. This call
      * actually fires an intent to start [CalendarAppWidgetService] as a
@@ -103,7 +120,9 @@ class CalendarAppWidgetProvider : AppWidgetProvider() {
      * @param appWidgetIds List of specific appWidgetIds to update, or null for
      * all.
      * @param changedEventIds Specific events known to be changed. If present,
-     * we use it to decide if an update is necessary.
+     * we use it to decide if an update is necessary, and only those events
+     * are reloaded. Only other apps sending the widget update action supply
+     * these, as [Intent.ACTION_PROVIDER_CHANGED] doesn't say what changed.
      */
     private fun performUpdate(
         context: Context,
@@ -111,14 +130,20 @@ class CalendarAppWidgetProvider : AppWidgetProvider() {
         appWidgetIds: IntArray,
         changedEventIds: LongArray?
     ) {
+        if (changedEventIds != null) {
+            // The header and list adapter don't depend on events, so only the
+            // widget data has to check whether the changed events are shown.
+            val changedIntent = Intent(Utils.getWidgetScheduledUpdateAction(context))
+            changedIntent.setClass(context, CalendarAppWidgetService.CalendarFactory::class.java)
+            changedIntent.putExtra(EXTRA_EVENT_IDS, changedEventIds)
+            context.sendBroadcast(changedIntent)
+            return
+        }
         // Launch over to service so it can perform update
         for (appWidgetId in appWidgetIds) {
             if (LOGD) Log.d(TAG, "Building widget update...")
             val updateIntent = Intent(context, CalendarAppWidgetService::class.java)
             updateIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId)
-            if (changedEventIds != null) {
-                updateIntent.putExtra(EXTRA_EVENT_IDS, changedEventIds)
-            }
             updateIntent.setData(Uri.parse(updateIntent.toUri(Intent.URI_INTENT_SCHEME)))
             val views = RemoteViews(context.getPackageName(), R.layout.appwidget)
             // Calendar header
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.calendar.widget
+
+import android.database.Cursor
+
+/**
+ * The rows of a widget instances query, read once from the cursor into
+ * parallel typed arrays in [CalendarAppWidgetService.EVENT_PROJECTION]
+ * order. [CalendarAppWidgetModel] is built from these instead of the cursor,
+ * so the cursor can be closed as soon as it is read.
+ */
+internal class WidgetEventTable(capacity: Int) {
+    var size = 0
+        private set
+
+    @JvmField val allDay: BooleanArray = BooleanArray(capacity)
+    @JvmField val begin: LongArray = LongArray(capacity)
+    @JvmField val end: LongArray = LongArray(capacity)
+    @JvmField val title: Array<String?> = arrayOfNulls(capacity)
+    @JvmField val location: Array<String?> = arrayOfNulls(capacity)
+    @JvmField val id: LongArray = LongArray(capacity)
+    @JvmField val startDay: IntArray = IntArray(capacity)
+    @JvmField val endDay: IntArray = IntArray(capacity)
+    @JvmField val color: IntArray = IntArray(capacity)
+    @JvmField val selfAttendeeStatus: IntArray = IntArray(capacity)
+
+    /**
+     * Reads the cursor's rows from the first one, up to the capacity.
+     */
+    fun read(cursor: Cursor) {
+        size = 0
+        cursor.moveToPosition(-1)
+        while (size < id.size && cursor.moveToNext()) {
+            val row = size++
+            allDay[row] = cursor.getInt(CalendarAppWidgetService.INDEX_ALL_DAY) != 0
+            begin[row] = cursor.getLong(CalendarAppWidgetService.INDEX_BEGIN)
+            end[row] = cursor.getLong(CalendarAppWidgetService.INDEX_END)
+            title[row] = cursor.getString(CalendarAppWidgetService.INDEX_TITLE)
+            location[row] = cursor.getString(CalendarAppWidgetService.INDEX_EVENT_LOCATION)
+            id[row] = cursor.getLong(CalendarAppWidgetService.INDEX_EVENT_ID)
+            startDay[row] = cursor.getInt(CalendarAppWidgetService.INDEX_START_DAY)
+            endDay[row] = cursor.getInt(CalendarAppWidgetService.INDEX_END_DAY)
+            color[row] = cursor.getInt(CalendarAppWidgetService.INDEX_COLOR)
+            selfAttendeeStatus[row] =
+                cursor.getInt(CalendarAppWidgetService.INDEX_SELF_ATTENDEE_STATUS)
+        }
+    }
+
+    companion object {
+        /**
+         * Returns a table holding all the rows of the cursor.
+         */
+        @JvmStatic fun fromCursor(cursor: Cursor): WidgetEventTable {
+            val table = WidgetEventTable(cursor.getCount())
+            table.read(cursor)
+            return table
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.calendar.widget
+
+import android.appwidget.AppWidgetManager
+import android.content.Context
+
+/**
+ * How many days ahead the widget query looks and how many event rows the
+ * widget shows. The row budget comes from the tallest calendar widget, so a
+ * small widget doesn't load a hundred instances, and the window starts at
+ * [MIN_DAYS] and is only widened when the events found don't fill the
+ * budget.
+ */
+internal class WidgetQueryPlan(
+    /** The number of days from today the query and model cover */
+    @JvmField val days: Int,
+    /** The number of event rows the model stops adding days after */
+    @JvmField val rowBudget: Int
+) {
+    /**
+     * The query's LIMIT. Instances that already ended and all-day events of
+     * the day before come back from the query too, so it loads a few times
+     * as many instances as rows.
+     */
+    @JvmField val limit: Int = Math.min(rowBudget * INSTANCES_PER_ROW, EVENT_MAX_COUNT)
+
+    /**
+     * Returns whether a model built from this plan has too few rows to fill
+     * the widget and a wider window may find more.
+     */
+    fun shouldWiden(model: CalendarAppWidgetModel): Boolean {
+        return days < MAX_DAYS && !model.mTruncated && model.mEventRowCount < rowBudget
+    }
+
+    /**
+     * Returns this plan with the window doubled, up to [MAX_DAYS].
+     */
+    fun widen(): WidgetQueryPlan {
+        return WidgetQueryPlan(Math.min(days * 2, MAX_DAYS), rowBudget)
+    }
+
+    companion object {
+        const val MIN_DAYS = 7
+        const val MAX_DAYS = 56
+        const val EVENT_MAX_COUNT = 100
+        private const val INSTANCES_PER_ROW = 3
+        private const val MIN_ROW_BUDGET = 8
+        private const val MAX_ROW_BUDGET = EVENT_MAX_COUNT / INSTANCES_PER_ROW
+
+        // The row budget when no widget reports its size
+        private const val DEFAULT_ROW_BUDGET = 20
+
+        // The heights of the widget's header and of its event rows, see
+        // appwidget.xml and widget_item.xml
+        private const val HEADER_HEIGHT_DP = 48
+        private const val ROW_HEIGHT_DP = 48
+
+        /**
+         * The plan used before any widget has been measured, and by models
+         * built without one.
+         */
+        @JvmField val DEFAULT = WidgetQueryPlan(MIN_DAYS, DEFAULT_ROW_BUDGET)
+
+        /**
+         * Returns the row budget for the calendar widgets: twice the rows the
+         * tallest of them shows, so there is a page to scroll to. This reads
+         * the widget options and must not be called on the main thread.
+         */
+        @JvmStatic fun getRowBudget(context: Context): Int {
+            val widgetManager: AppWidgetManager =
+                AppWidgetManager.getInstance(context) ?: return DEFAULT_ROW_BUDGET
+            val ids: IntArray = widgetManager.getAppWidgetIds(
+                CalendarAppWidgetProvider.getComponentName(context))
+            var maxHeight = 0
+            for (id in ids) {
+                val options = widgetManager.getAppWidgetOptions(id)
+                maxHeight = Math.max(maxHeight,
+                    options.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT))
+            }
+            if (maxHeight <= 0) {
+                return DEFAULT_ROW_BUDGET
+            }
+            val rows: Int = (maxHeight - HEADER_HEIGHT_DP) / ROW_HEIGHT_DP
+            return Math.max(MIN_ROW_BUDGET, Math.min(rows * 2, MAX_ROW_BUDGET))
+        }
+    }
+}
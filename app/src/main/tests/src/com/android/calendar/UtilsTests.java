@@ -21,8 +21,10 @@ import android.database.MatrixCursor;
 import android.provider.CalendarContract.CalendarCache;
 import android.test.mock.MockResources;
 import android.test.suitebuilder.annotation.Smoke;
+import android.text.format.DateUtils;
 import android.text.format.Time;
 import android.util.DisplayMetrics;
+import android.util.SparseArray;
 
 import androidx.test.filters.SmallTest;
 
@@ -30,6 +32,7 @@ import com.android.calendar.CalendarUtils.TimeZoneUtils;
 
 import junit.framework.TestCase;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
 
@@ -47,6 +50,15 @@ public class UtilsTests extends TestCase {
     private DbTestUtils dbUtils;
     private final TimeZoneUtils timezoneUtils = new TimeZoneUtils(Utils.SHARED_PREFS_NAME);
 
+    // The DNA parameters Utils holds for the whole process, restored after
+    // each test changes them
+    private int mWorkDayStartMinutes;
+    private int mWorkDayEndMinutes;
+    private int mWorkDayMinutes;
+    private int mWorkDayEndLength;
+    private int mConflictColor;
+    private boolean mMinutesLoaded;
+
     private static final int NAME_COLUMN = 0;
     private static final String[] DUPLICATE_NAME_COLUMNS = new String[] { "name" };
     private static final String[][] DUPLICATE_NAMES = new String[][] {
@@ -78,6 +90,17 @@ public class UtilsTests extends TestCase {
     private static final long NOW_TIME = createTimeInMillis(5, 5, 5, NOW_DAY, NOW_MONTH, NOW_YEAR);
     private static final String DEFAULT_TIMEZONE = Time.getCurrentTimezone();
 
+    // The DNA of a week drawn 96 pixels high, with 4 pixels per segment at least
+    private static final int DNA_FIRST_DAY = 2456000;
+    private static final int DNA_TOP = 0;
+    private static final int DNA_BOTTOM = 96;
+    private static final int DNA_MIN_PIXELS = 4;
+    private static final int[] DNA_DAY_XS = {10, 20, 30, 40, 50, 60, 70};
+    private static final int BLUE = 0xff0000ff;
+    private static final int RED = 0xffff0000;
+    private static final int GREEN = 0xff00ff00;
+    private static final int CONFLICT_COLOR = 0xff000000;
+
     /**
      * Mock resources.  Add translation strings for test here.
      */
@@ -162,6 +185,13 @@ public class UtilsTests extends TestCase {
                 dbUtils.getContentProvider());
 
         setTimezone(DEFAULT_TIMEZONE);
+
+        mWorkDayStartMinutes = Utils.INSTANCE.getWORK_DAY_START_MINUTES();
+        mWorkDayEndMinutes = Utils.INSTANCE.getWORK_DAY_END_MINUTES();
+        mWorkDayMinutes = Utils.INSTANCE.getWORK_DAY_MINUTES();
+        mWorkDayEndLength = Utils.INSTANCE.getWORK_DAY_END_LENGTH();
+        mConflictColor = Utils.INSTANCE.getCONFLICT_COLOR();
+        mMinutesLoaded = Utils.INSTANCE.getMMinutesLoaded();
     }
 
     @Override
@@ -171,6 +201,14 @@ public class UtilsTests extends TestCase {
         // Must reset the timezone here, because even though the fake provider will be
         // recreated/cleared, TimeZoneUtils statically holds on to a cached value.
         setTimezone(Time.getCurrentTimezone());
+
+        // The app and later tests must still load the real DNA parameters
+        Utils.INSTANCE.setWORK_DAY_START_MINUTES(mWorkDayStartMinutes);
+        Utils.INSTANCE.setWORK_DAY_END_MINUTES(mWorkDayEndMinutes);
+        Utils.INSTANCE.setWORK_DAY_MINUTES(mWorkDayMinutes);
+        Utils.INSTANCE.setWORK_DAY_END_LENGTH(mWorkDayEndLength);
+        Utils.INSTANCE.setCONFLICT_COLOR(mConflictColor);
+        Utils.INSTANCE.setMMinutesLoaded(mMinutesLoaded);
     }
 
     @Smoke
@@ -390,4 +428,86 @@ public class UtilsTests extends TestCase {
         long start = createTimeInMillis(0, 0, 17, 12, 3, 2012, eventTz);
         assertEquals("EDT", Utils.getDisplayedTimezone(start, localTz, eventTz));
     }
+
+    /**
+     * Uses the default work day and conflict color, so the DNA doesn't need
+     * the resources of a context. tearDown() puts the previous values back.
+     */
+    private static void setDnaDefaults() {
+        Utils.INSTANCE.setWORK_DAY_START_MINUTES(6 * 60);
+        Utils.INSTANCE.setWORK_DAY_END_MINUTES(20 * 60);
+        Utils.INSTANCE.setWORK_DAY_MINUTES(14 * 60);
+        Utils.INSTANCE.setWORK_DAY_END_LENGTH(4 * 60);
+        Utils.INSTANCE.setCONFLICT_COLOR(CONFLICT_COLOR);
+        Utils.INSTANCE.setMMinutesLoaded(true);
+    }
+
+    private static void addDnaEvent(EventTable events, int color, int startDay, int startMinute,
+            int endDay, int endMinute, boolean allDay) {
+        long begin = startMinute * DateUtils.MINUTE_IN_MILLIS;
+        long end = ((endDay - startDay) * Utils.DAY_IN_MINUTES + endMinute)
+                * DateUtils.MINUTE_IN_MILLIS;
+        events.add(events.getSize(), null, null, allDay, color, begin, end, startDay, endDay,
+                startMinute, endMinute, false, false, 0);
+    }
+
+    private static SparseArray<Utils.DNAStrand> createDnaStrands(EventTable events) {
+        setDnaDefaults();
+        return Utils.createDNAStrands(DNA_FIRST_DAY, events, DNA_TOP, DNA_BOTTOM,
+                DNA_MIN_PIXELS, DNA_DAY_XS, null);
+    }
+
+    private static void assertStrand(SparseArray<Utils.DNAStrand> strands, int color,
+            float[] expectedPoints) {
+        Utils.DNAStrand strand = strands.get(color);
+        assertNotNull("No strand for " + Integer.toHexString(color), strand);
+        assertEquals(expectedPoints.length / 4, strand.count);
+        assertEquals(expectedPoints.length, strand.position);
+        assertTrue(Arrays.toString(strand.points), Arrays.equals(expectedPoints,
+                Arrays.copyOf(strand.points, strand.position)));
+    }
+
+    @SmallTest
+    public void testCreateDNAStrands_overlappingEvents() {
+        EventTable events = new EventTable();
+        // 9am to 11am and 10am to noon on the first day
+        addDnaEvent(events, BLUE, DNA_FIRST_DAY, 540, DNA_FIRST_DAY, 660, false);
+        addDnaEvent(events, RED, DNA_FIRST_DAY, 600, DNA_FIRST_DAY, 720, false);
+
+        SparseArray<Utils.DNAStrand> strands = createDnaStrands(events);
+        assertEquals(3, strands.size());
+        assertStrand(strands, BLUE, new float[] {10, 27, 10, 32});
+        assertStrand(strands, CONFLICT_COLOR, new float[] {10, 32, 10, 37});
+        assertStrand(strands, RED, new float[] {10, 37, 10, 42});
+        assertNull(strands.get(CONFLICT_COLOR).allDays);
+    }
+
+    @SmallTest
+    public void testCreateDNAStrands_allDayEvents() {
+        EventTable events = new EventTable();
+        // All day on the second and third days, and all day on the third day
+        addDnaEvent(events, BLUE, DNA_FIRST_DAY + 1, 0, DNA_FIRST_DAY + 2, 0, true);
+        addDnaEvent(events, RED, DNA_FIRST_DAY + 2, 0, DNA_FIRST_DAY + 2, 0, true);
+        // 9am to 10am on the second day
+        addDnaEvent(events, GREEN, DNA_FIRST_DAY + 1, 540, DNA_FIRST_DAY + 1, 600, false);
+
+        SparseArray<Utils.DNAStrand> strands = createDnaStrands(events);
+        assertEquals(2, strands.size());
+        assertStrand(strands, GREEN, new float[] {20, 27, 20, 32});
+        Utils.DNAStrand conflicts = strands.get(CONFLICT_COLOR);
+        assertEquals(0, conflicts.count);
+        assertTrue(Arrays.toString(conflicts.allDays), Arrays.equals(
+                new int[] {0, BLUE, CONFLICT_COLOR, 0, 0, 0, 0}, conflicts.allDays));
+    }
+
+    @SmallTest
+    public void testCreateDNAStrands_multiDayEvent() {
+        EventTable events = new EventTable();
+        // 10pm on the third day to 2am on the fourth day
+        addDnaEvent(events, BLUE, DNA_FIRST_DAY + 2, 1320, DNA_FIRST_DAY + 3, 120, false);
+
+        SparseArray<Utils.DNAStrand> strands = createDnaStrands(events);
+        assertEquals(1, strands.size());
+        assertStrand(strands, BLUE, new float[] {30, 90, 30, 95, 40, 0, 40, 4});
+    }
 }
@@ -175,6 +175,104 @@ public class CalendarAppWidgetServiceTest extends AndroidTestCase {
         assertEquals(expected.toString(), actual.toString());
     }
 
+    @SmallTest
+    public void testBuildFromChangedEvents_replacesChangedEvent() throws Exception {
+        String timeZone = Time.getCurrentTimezone();
+        MatrixCursor cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        cursor.addRow(getTimedRow(now + ONE_HOUR, now + TWO_HOURS, title + 1, location, 1));
+        cursor.addRow(getTimedRow(now + TWO_HOURS, now + 3 * ONE_HOUR, title + 2, location, 2));
+        CalendarAppWidgetModel base = CalendarFactory.buildAppWidgetModel(
+                getContext(), cursor, timeZone);
+
+        // Event 2 moved before event 1 and was renamed
+        MatrixCursor changed = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        changed.addRow(getTimedRow(now + HALF_HOUR, now + ONE_HOUR, "Moved", location, 2));
+        CalendarAppWidgetModel actual = new CalendarAppWidgetModel(getContext(), timeZone);
+        actual.buildFromChangedEvents(base, new long[] { 2 },
+                WidgetEventTable.fromCursor(changed), timeZone);
+
+        cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        cursor.addRow(getTimedRow(now + HALF_HOUR, now + ONE_HOUR, "Moved", location, 2));
+        cursor.addRow(getTimedRow(now + ONE_HOUR, now + TWO_HOURS, title + 1, location, 1));
+        CalendarAppWidgetModel expected = CalendarFactory.buildAppWidgetModel(
+                getContext(), cursor, timeZone);
+
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(expected.mRowInfos.size(), actual.mRowInfos.size());
+    }
+
+    @SmallTest
+    public void testBuildFromChangedEvents_removesDeletedEvent() throws Exception {
+        String timeZone = Time.getCurrentTimezone();
+        MatrixCursor cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        cursor.addRow(getTimedRow(now + ONE_HOUR, now + TWO_HOURS, title + 1, location, 1));
+        cursor.addRow(getTimedRow(now + TWO_HOURS, now + 3 * ONE_HOUR, title + 2, location, 2));
+        CalendarAppWidgetModel base = CalendarFactory.buildAppWidgetModel(
+                getContext(), cursor, timeZone);
+
+        MatrixCursor changed = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        CalendarAppWidgetModel actual = new CalendarAppWidgetModel(getContext(), timeZone);
+        actual.buildFromChangedEvents(base, new long[] { 1 },
+                WidgetEventTable.fromCursor(changed), timeZone);
+
+        assertEquals(1, actual.mEventInfos.size());
+        assertSame(base.mEventInfos.get(1), actual.mEventInfos.get(0));
+        // The day header and the remaining event
+        assertEquals(2, actual.mRowInfos.size());
+    }
+
+    @SmallTest
+    public void testContainsAnyEvent() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        cursor.addRow(getTimedRow(now + ONE_HOUR, now + TWO_HOURS, title, location, 5));
+        CalendarAppWidgetModel model = CalendarFactory.buildAppWidgetModel(
+                getContext(), cursor, Time.getCurrentTimezone());
+
+        assertTrue(model.containsAnyEvent(new long[] { 3, 5 }));
+        assertFalse(model.containsAnyEvent(new long[] { 3, 4 }));
+        assertFalse(model.containsAnyEvent(new long[0]));
+    }
+
+    @SmallTest
+    public void testShowsSameAs_ignoresEventsPastTheLastRow() throws Exception {
+        String timeZone = Time.getCurrentTimezone();
+        MatrixCursor cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        cursor.addRow(getTimedRow(now + ONE_HOUR, now + TWO_HOURS, title + 1, location, 1));
+        cursor.addRow(getTimedRow(now + TWO_HOURS, now + 3 * ONE_HOUR, title + 2, location, 2));
+        CalendarAppWidgetModel shown = CalendarFactory.buildAppWidgetModel(
+                getContext(), cursor, timeZone);
+
+        // A sync added an event after the days the widget shows
+        long later = now + 10 * 24 * ONE_HOUR;
+        cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        cursor.addRow(getTimedRow(now + ONE_HOUR, now + TWO_HOURS, title + 1, location, 1));
+        cursor.addRow(getTimedRow(now + TWO_HOURS, now + 3 * ONE_HOUR, title + 2, location, 2));
+        cursor.addRow(getTimedRow(later, later + ONE_HOUR, title + 3, location, 3));
+        CalendarAppWidgetModel reloaded = CalendarFactory.buildAppWidgetModel(
+                getContext(), cursor, timeZone);
+
+        assertEquals(3, reloaded.mEventInfos.size());
+        assertTrue(reloaded.showsSameAs(shown));
+    }
+
+    @SmallTest
+    public void testShowsSameAs_detectsChangedRow() throws Exception {
+        String timeZone = Time.getCurrentTimezone();
+        MatrixCursor cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        cursor.addRow(getTimedRow(now + ONE_HOUR, now + TWO_HOURS, title + 1, location, 1));
+        cursor.addRow(getTimedRow(now + TWO_HOURS, now + 3 * ONE_HOUR, title + 2, location, 2));
+        CalendarAppWidgetModel shown = CalendarFactory.buildAppWidgetModel(
+                getContext(), cursor, timeZone);
+
+        cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        cursor.addRow(getTimedRow(now + ONE_HOUR, now + TWO_HOURS, title + 1, location, 1));
+        cursor.addRow(getTimedRow(now + TWO_HOURS, now + 3 * ONE_HOUR, "Renamed", location, 2));
+        CalendarAppWidgetModel reloaded = CalendarFactory.buildAppWidgetModel(
+                getContext(), cursor, timeZone);
+
+        assertFalse(reloaded.showsSameAs(shown));
+    }
+
     private Object[] getRow(int allDay, long begin, long end, String title, String location,
             long eventId) {
         Object[] row = new Object[CalendarAppWidgetService.EVENT_PROJECTION.length];
@@ -186,4 +284,17 @@ public class CalendarAppWidgetServiceTest extends AndroidTestCase {
         row[CalendarAppWidgetService.INDEX_EVENT_ID] = new Long(eventId);
         return row;
     }
+
+    /**
+     * Returns the row of an event that isn't all day, with the Julian days
+     * it starts and ends on filled in.
+     */
+    private Object[] getTimedRow(long begin, long end, String title, String location,
+            long eventId) {
+        Object[] row = getRow(0, begin, end, title, location, eventId);
+        long gmtoff = TimeZone.getDefault().getOffset(begin) / DateUtils.SECOND_IN_MILLIS;
+        row[CalendarAppWidgetService.INDEX_START_DAY] = Time.getJulianDay(begin, gmtoff);
+        row[CalendarAppWidgetService.INDEX_END_DAY] = Time.getJulianDay(end, gmtoff);
+        return row;
+    }
 }